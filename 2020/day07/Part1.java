@@ -2,8 +2,8 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
 
 public class Part1
 {
@@ -11,7 +11,6 @@ public class Part1
   {
     private final String id;
     private final HashMap<String, Integer> contains;
-    private final HashSet<Rule> containedBy;
 
     private Rule() {
       throw new UnsupportedOperationException("empty constructor");
@@ -20,7 +19,6 @@ public class Part1
     public Rule(final String unparsed)
     {
       contains = new HashMap<String, Integer>();
-      containedBy = new HashSet<Rule>();
       final String[] tokens = unparsed.split(" bags contain ");
       id = tokens[0].trim();
       parseContents(tokens[1].trim());
@@ -33,11 +31,6 @@ public class Part1
       contains.put(id, count);
     }
 
-    private void addContainedBy(final Rule rule)
-    {
-      containedBy.add(rule);
-    }
-
     private void parseContent(final String content)
     {
       if (("no other bags.").equals(content)) {
@@ -57,27 +50,6 @@ public class Part1
       }
     }
 
-    public void resolveOther()
-    {
-      for (final String id : contains.keySet()) {
-        final Rule other = rules.get(id);
-        if (other == null) {
-          throw new RuntimeException("unknown bags type: " + id);
-        }
-        other.addContainedBy(this);
-      }
-    }
-
-    public void getContainedByClosure(final HashSet<Rule> closure)
-    {
-      for (final Rule rule : containedBy) {
-        if (!closure.contains(rule)) {
-          closure.add(rule);
-          rule.getContainedByClosure(closure);
-        }
-      }
-    }
-
     public String toString()
     {
       final StringBuffer s = new StringBuffer();
@@ -95,6 +67,72 @@ public class Part1
     }
   }
 
+  /**
+   * Rules compiled to integer node ids.  For each node, containers
+   * lists the nodes of all bags that directly contain it.
+   */
+  private class RuleGraph
+  {
+    private final HashMap<String, Integer> id2node;
+    private final int[][] containers;
+
+    private RuleGraph()
+    {
+      id2node = new HashMap<String, Integer>();
+      for (final String id : rules.keySet()) {
+        id2node.put(id, id2node.size());
+      }
+      final int[] containerCount = new int[id2node.size()];
+      for (final Rule rule : rules.values()) {
+        for (final String id : rule.contains.keySet()) {
+          containerCount[node(id)]++;
+        }
+      }
+      containers = new int[id2node.size()][];
+      for (int node = 0; node < containers.length; node++) {
+        containers[node] = new int[containerCount[node]];
+      }
+      for (final Rule rule : rules.values()) {
+        final int container = node(rule.getId());
+        for (final String id : rule.contains.keySet()) {
+          final int node = node(id);
+          containers[node][--containerCount[node]] = container;
+        }
+      }
+    }
+
+    private int node(final String id)
+    {
+      final Integer node = id2node.get(id);
+      if (node == null) {
+        throw new RuntimeException("unknown bags type: " + id);
+      }
+      return node;
+    }
+
+    /**
+     * Breadth-first search along the container edges, with a bit
+     * set marking each node visited at most once, such that the
+     * closure is computed in time linear in the size of the graph.
+     */
+    private BitSet getContainedByClosure(final int start)
+    {
+      final BitSet closure = new BitSet(containers.length);
+      final int[] queue = new int[containers.length];
+      int head = 0, tail = 0;
+      queue[tail++] = start;
+      while (head < tail) {
+        for (final int container : containers[queue[head++]]) {
+          if (!closure.get(container)) {
+            closure.set(container);
+            queue[tail++] = container;
+          }
+        }
+      }
+      return closure;
+    }
+  }
+
   private final HashMap<String, Rule> rules;
 
   private Part1() {
@@ -108,20 +146,10 @@ public class Part1
     rules.put(id, rule);
   }
 
-  private void resolveContainedBy()
-  {
-    for (final String id : rules.keySet()) {
-      final Rule rule = rules.get(id);
-      rule.resolveOther();
-    }
-  }
-
-  public HashSet<Rule> getContainedByClosure(final String id)
+  public BitSet getContainedByClosure(final String id)
   {
-    final Rule rule = rules.get(id);
-    final HashSet<Rule> closure = new HashSet<Rule>();
-    rule.getContainedByClosure(closure);
-    return closure;
+    final RuleGraph graph = new RuleGraph();
+    return graph.getContainedByClosure(graph.node(id));
   }
 
   private void run(final String filePath) throws IOException
@@ -135,8 +163,7 @@ public class Part1
     for (final var value : values) {
       parseRule(value);
     }
-    resolveContainedBy();
-    System.out.println(getContainedByClosure("shiny gold").size());
+    System.out.println(getContainedByClosure("shiny gold").cardinality());
   }
 
   public static void main(final String argv[]) throws IOException
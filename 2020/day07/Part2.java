@@ -49,18 +49,6 @@ public class Part2
       }
     }
 
-    public long countContains()
-    {
-      long sum = 0;
-      for (final String id : contains.keySet()) {
-        final Rule other = rules.get(id);
-        final int count = contains.get(id);
-        final long otherContains = other.countContains();
-        sum += count * (otherContains + 1);
-      }
-      return sum;
-    }
-
     public String toString()
     {
       final StringBuffer s = new StringBuffer();
@@ -78,6 +66,95 @@ public class Part2
     }
   }
 
+  /**
+   * Rules compiled to integer node ids.  For each node, contents
+   * lists the nodes of all bags that it directly contains, and counts
+   * the respective number of bags.
+   */
+  private class RuleGraph
+  {
+    private final HashMap<String, Integer> id2node;
+    private final int[][] contents;
+    private final int[][] counts;
+
+    private RuleGraph()
+    {
+      id2node = new HashMap<String, Integer>();
+      for (final String id : rules.keySet()) {
+        id2node.put(id, id2node.size());
+      }
+      contents = new int[id2node.size()][];
+      counts = new int[id2node.size()][];
+      for (final Rule rule : rules.values()) {
+        final int node = node(rule.getId());
+        contents[node] = new int[rule.contains.size()];
+        counts[node] = new int[rule.contains.size()];
+        int i = 0;
+        for (final String id : rule.contains.keySet()) {
+          contents[node][i] = node(id);
+          counts[node][i++] = rule.contains.get(id);
+        }
+      }
+    }
+
+    private int node(final String id)
+    {
+      final Integer node = id2node.get(id);
+      if (node == null) {
+        throw new RuntimeException("unknown bags type: " + id);
+      }
+      return node;
+    }
+
+    /**
+     * Returns all nodes such that each bag comes before all bags
+     * that it contains (Kahn's algorithm).
+     */
+    private int[] topologicalOrder()
+    {
+      final int[] containerCount = new int[contents.length];
+      for (final int[] nodes : contents) {
+        for (final int node : nodes) {
+          containerCount[node]++;
+        }
+      }
+      final int[] order = new int[contents.length];
+      int head = 0, tail = 0;
+      for (int node = 0; node < contents.length; node++) {
+        if (containerCount[node] == 0) order[tail++] = node;
+      }
+      while (head < tail) {
+        for (final int node : contents[order[head++]]) {
+          if (--containerCount[node] == 0) order[tail++] = node;
+        }
+      }
+      if (tail < contents.length) {
+        throw new RuntimeException("bag rules contain a cycle");
+      }
+      return order;
+    }
+
+    /**
+     * Evaluates the number of contained bags for all nodes in a
+     * single pass in reverse topological order, such that the counts
+     * of all contained bags are already known when they are needed.
+     */
+    private long[] countContains()
+    {
+      final int[] order = topologicalOrder();
+      final long[] sums = new long[contents.length];
+      for (int i = order.length - 1; i >= 0; i--) {
+        final int node = order[i];
+        long sum = 0;
+        for (int j = 0; j < contents[node].length; j++) {
+          sum += counts[node][j] * (sums[contents[node][j]] + 1);
+        }
+        sums[node] = sum;
+      }
+      return sums;
+    }
+  }
+
   private final HashMap<String, Rule> rules;
 
   private Part2() {
@@ -92,8 +169,8 @@ public class Part2
   }
 
   public long getContains(final String id) {
-    Rule rule = rules.get(id);
-    return rule.countContains();
+    final RuleGraph graph = new RuleGraph();
+    return graph.countContains()[graph.node(id)];
   }
 
   private void run(final String filePath) throws IOException
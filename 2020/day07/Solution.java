@@ -0,0 +1,315 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Answers both parts on a bag graph that may change after the initial
+ * load.  In incremental mode, further lines are read from standard
+ * input: a rule line adds or replaces the rule for its bag, "remove
+ * <bag>" drops the rule for a bag, and "query <bag>" prints both
+ * answers for that bag.  Memoized containment counts and cached
+ * contained-by closures are invalidated only where a change can
+ * affect them, and recomputed lazily on the next query.
+ */
+public class Solution
+{
+  private static final String TARGET = "shiny gold";
+
+  private class Rule
+  {
+    private final String id;
+    private final HashMap<String, Integer> contains;
+
+    private Rule() {
+      throw new UnsupportedOperationException("empty constructor");
+    }
+
+    public Rule(final String unparsed)
+    {
+      contains = new HashMap<String, Integer>();
+      final String[] tokens = unparsed.split(" bags contain ");
+      if (tokens.length != 2) {
+        throw new RuntimeException("invalid rule: " + unparsed);
+      }
+      id = tokens[0].trim();
+      parseContents(tokens[1].trim());
+    }
+
+    public String getId() { return id; }
+
+    private void addContent(final String id, final int count)
+    {
+      contains.put(id, count);
+    }
+
+    private void parseContent(final String content)
+    {
+      if (("no other bags.").equals(content)) {
+        return;
+      }
+      final String[] tokens =
+        content.split("bag[s]?\\.?$")[0].trim().split(" ", 2);
+      final String count = tokens[0].trim();
+      final String id = tokens[1].trim();
+      addContent(id, Integer.parseInt(count));
+    }
+
+    private void parseContents(final String contents)
+    {
+      for (final String content : contents.split(",")) {
+        parseContent(content);
+      }
+    }
+  }
+
+  /**
+   * Node ids are assigned on first sight of a bag, whether it is
+   * defined by a rule or only referenced by one.  A bag without rule
+   * is treated as containing no other bags.
+   */
+  private final HashMap<String, Integer> id2node;
+  private final ArrayList<int[]> contents;
+  private final ArrayList<int[]> counts;
+  private final ArrayList<HashSet<Integer>> containers;
+
+  /**
+   * Memoized number of contained bags per node, valid only where the
+   * respective bit in validSums is set.  Invariant: a node is valid
+   * only if all of its contents are valid, such that invalidation can
+   * stop at nodes that are already invalid.
+   */
+  private long[] sums;
+  private final BitSet validSums;
+
+  /**
+   * Cached contained-by closures of queried nodes.
+   */
+  private final HashMap<Integer, BitSet> closures;
+
+  private Solution()
+  {
+    id2node = new HashMap<String, Integer>();
+    contents = new ArrayList<int[]>();
+    counts = new ArrayList<int[]>();
+    containers = new ArrayList<HashSet<Integer>>();
+    sums = new long[16];
+    validSums = new BitSet();
+    closures = new HashMap<Integer, BitSet>();
+  }
+
+  private int node(final String id)
+  {
+    final Integer node = id2node.get(id);
+    if (node != null) return node;
+    final int newNode = id2node.size();
+    id2node.put(id, newNode);
+    contents.add(new int[0]);
+    counts.add(new int[0]);
+    containers.add(new HashSet<Integer>());
+    if (newNode >= sums.length) {
+      final long[] newSums = new long[2 * sums.length];
+      System.arraycopy(sums, 0, newSums, 0, sums.length);
+      sums = newSums;
+    }
+    return newNode;
+  }
+
+  private void setContents(final int node, final HashMap<String, Integer> ids)
+  {
+    final int[] oldContents = contents.get(node);
+    final int[] newContents = new int[ids.size()];
+    final int[] newCounts = new int[ids.size()];
+    int i = 0;
+    for (final String id : ids.keySet()) {
+      newContents[i] = node(id);
+      newCounts[i++] = ids.get(id);
+    }
+    for (final int content : oldContents) {
+      containers.get(content).remove(node);
+    }
+    for (final int content : newContents) {
+      containers.get(content).add(node);
+    }
+    contents.set(node, newContents);
+    counts.set(node, newCounts);
+    invalidateSums(node);
+    invalidateClosures(oldContents, newContents);
+  }
+
+  private void updateRule(final Rule rule)
+  {
+    setContents(node(rule.getId()), rule.contains);
+  }
+
+  private void removeRule(final String id)
+  {
+    final Integer node = id2node.get(id);
+    if (node == null) {
+      throw new RuntimeException("unknown bags type: " + id);
+    }
+    setContents(node, new HashMap<String, Integer>());
+  }
+
+  /**
+   * Invalidates the memoized sum of the node and of all bags that
+   * directly or indirectly contain it.
+   */
+  private void invalidateSums(final int start)
+  {
+    if (!validSums.get(start)) return;
+    final ArrayList<Integer> stack = new ArrayList<Integer>();
+    validSums.clear(start);
+    stack.add(start);
+    while (!stack.isEmpty()) {
+      final int node = stack.remove(stack.size() - 1);
+      for (final int container : containers.get(node)) {
+        if (validSums.get(container)) {
+          validSums.clear(container);
+          stack.add(container);
+        }
+      }
+    }
+  }
+
+  /**
+   * Adding or removing an edge from some bag to a bag b changes the
+   * contained-by closure of a queried bag q only if b is q itself or
+   * lies within the closure of q, since otherwise the edge is not on
+   * any path to q.
+   */
+  private void invalidateClosures(final int[] oldContents,
+                                  final int[] newContents)
+  {
+    final HashSet<Integer> changed = new HashSet<Integer>();
+    for (final int content : oldContents) changed.add(content);
+    for (final int content : newContents) {
+      if (!changed.remove(content)) changed.add(content);
+    }
+    if (changed.isEmpty()) return;
+    closures.entrySet().removeIf(entry -> {
+        for (final int content : changed) {
+          if ((content == entry.getKey()) || entry.getValue().get(content))
+            return true;
+        }
+        return false;
+      });
+  }
+
+  /**
+   * Iterative post-order evaluation that descends only into nodes
+   * whose memoized sum is invalid.
+   */
+  private long countContains(final int start)
+  {
+    final BitSet onStack = new BitSet();
+    final ArrayList<Integer> stack = new ArrayList<Integer>();
+    stack.add(start);
+    while (!stack.isEmpty()) {
+      final int node = stack.get(stack.size() - 1);
+      if (validSums.get(node)) {
+        stack.remove(stack.size() - 1);
+        continue;
+      }
+      if (!onStack.get(node)) {
+        onStack.set(node);
+        for (final int content : contents.get(node)) {
+          if (onStack.get(content)) {
+            throw new RuntimeException("bag rules contain a cycle");
+          }
+          if (!validSums.get(content)) stack.add(content);
+        }
+        continue;
+      }
+      final int[] nodeContents = contents.get(node);
+      final int[] nodeCounts = counts.get(node);
+      long sum = 0;
+      for (int i = 0; i < nodeContents.length; i++) {
+        sum += nodeCounts[i] * (sums[nodeContents[i]] + 1);
+      }
+      sums[node] = sum;
+      validSums.set(node);
+      onStack.clear(node);
+      stack.remove(stack.size() - 1);
+    }
+    return sums[start];
+  }
+
+  private BitSet getContainedByClosure(final int start)
+  {
+    final BitSet cached = closures.get(start);
+    if (cached != null) return cached;
+    final BitSet closure = new BitSet(id2node.size());
+    final ArrayList<Integer> queue = new ArrayList<Integer>();
+    queue.add(start);
+    for (int head = 0; head < queue.size(); head++) {
+      for (final int container : containers.get(queue.get(head))) {
+        if (!closure.get(container)) {
+          closure.set(container);
+          queue.add(container);
+        }
+      }
+    }
+    closures.put(start, closure);
+    return closure;
+  }
+
+  private void query(final String id)
+  {
+    final Integer node = id2node.get(id);
+    if (node == null) {
+      throw new RuntimeException("unknown bags type: " + id);
+    }
+    System.out.println(getContainedByClosure(node).cardinality() + " " +
+                       countContains(node));
+  }
+
+  private void processCommand(final String line)
+  {
+    if (line.isBlank()) return;
+    if (line.startsWith("query ")) {
+      query(line.substring(6).trim());
+    } else if (line.startsWith("remove ")) {
+      removeRule(line.substring(7).trim());
+    } else {
+      updateRule(new Rule(line));
+    }
+  }
+
+  private void run(final String filePath, final boolean incremental)
+    throws IOException
+  {
+    final var reader = new BufferedReader(new FileReader(filePath));
+    String line;
+    while ((line = reader.readLine()) != null) {
+      updateRule(new Rule(line));
+    }
+    query(TARGET);
+    if (!incremental) return;
+    final var commands = new BufferedReader(new InputStreamReader(System.in));
+    while ((line = commands.readLine()) != null) {
+      try {
+        processCommand(line);
+      } catch (final RuntimeException e) {
+        System.out.println("error: " + e.getMessage());
+      }
+    }
+  }
+
+  public static void main(final String argv[]) throws IOException
+  {
+    boolean incremental = false;
+    for (final String arg : argv) {
+      if (arg.equals("--incremental")) {
+        incremental = true;
+      } else {
+        throw new IllegalArgumentException("usage: Solution [--incremental]");
+      }
+    }
+    new Solution().run("data.txt", incremental);
+  }
+}
@@ -1,7 +1,18 @@
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Random;
 
 public class Part2
 {
@@ -9,6 +20,17 @@ public class Part2
     SEG_FAULT, LOOP_DETECTED
   }
 
+  private enum Engine {
+    OBJECTS, BYTECODE, JIT
+  }
+
+  private interface Executable
+  {
+    ExitCode execute(final int flippedAdr);
+    int getPc();
+    int getAcc();
+  }
+
   // registers
 
   /** program counter */
@@ -76,7 +98,657 @@ public class Part2
     }
   }
 
-  private Part2() {}
+  /**
+   * Compact representation of a program as parallel arrays of
+   * opcodes and arguments, executed by a single switch-dispatch loop
+   * rather than by virtual calls on instruction objects.  For
+   * searching a repair, a single nop or jmp instruction can be
+   * executed flipped without modifying the program.
+   */
+  private static class Bytecode implements Executable
+  {
+    private static final byte ACC = 0;
+    private static final byte JMP = 1;
+    private static final byte NOP = 2;
+
+    private final byte[] opcode;
+    private final int[] arg;
+    private final BitSet seen;
+    private int pc;
+    private int acc;
+
+    private Bytecode(final Instruction[] prg)
+    {
+      opcode = new byte[prg.length];
+      arg = new int[prg.length];
+      seen = new BitSet(prg.length);
+      for (int adr = 0; adr < prg.length; adr++) {
+        final Instruction instruction = prg[adr];
+        opcode[adr] =
+          (instruction instanceof Acc) ? ACC :
+          (instruction instanceof Jmp) ? JMP : NOP;
+        arg[adr] = instruction.getArg();
+      }
+    }
+
+    public ExitCode execute(final int flippedAdr)
+    {
+      final int length = opcode.length;
+      int pc = 0;
+      int acc = 0;
+      seen.clear();
+      while (pc != length) {
+        if ((pc < 0) || (pc > length)) {
+          throw new RuntimeException("pc out of range: " + pc);
+        }
+        if (seen.get(pc)) break;
+        seen.set(pc);
+        switch (opcode[pc]) {
+        case ACC:
+          acc += arg[pc];
+          pc++;
+          break;
+        case JMP:
+          pc += (pc == flippedAdr) ? 1 : arg[pc];
+          break;
+        default:
+          pc += (pc == flippedAdr) ? arg[pc] : 1;
+          break;
+        }
+      }
+      this.pc = pc;
+      this.acc = acc;
+      return pc == length ? ExitCode.SEG_FAULT : ExitCode.LOOP_DETECTED;
+    }
+
+    public int getPc() { return pc; }
+
+    public int getAcc() { return acc; }
+  }
+
+  /**
+   * Program translated into a hidden class, such that the JVM's JIT
+   * compiler can turn it into native code.  The program is split into
+   * segments of SEGMENT_SIZE consecutive addresses, each compiled into
+   * a static method "int segN(int flippedAdr, int[] registers,
+   * boolean[] visited)", since HotSpot by default does not
+   * JIT-compile methods larger than 8000 bytes of bytecode (see
+   * -XX:-DontCompileHugeMethods).  The static method "int run(int
+   * flippedAdr, int[] registers)" allocates the visited flags and
+   * dispatches by pc to the segment that contains it, until a segment
+   * returns a result other than "continue in another segment".
+   *
+   * Within a segment, acc is kept in a local variable, and the code
+   * is laid out as basic blocks: A block starts at the segment's
+   * first address, at each possible jump target (of jmp as well as of
+   * nop, since either may be flipped), and behind each jmp or nop.
+   * Since a block can only be entered at its start, the first
+   * instruction that is executed twice is always the start of a
+   * block, such that the visited guard is needed only there.  run()
+   * returns 0 on normal termination, 1 on loop detection, and 2 if pc
+   * gets out of range; pc and acc are stored into registers[0] and
+   * registers[1].
+   *
+   * The class file is written with major version 49, which does not
+   * yet require stack map frames.  If a segment or the dispatcher
+   * still exceeds MAX_CODE_SIZE, or the JVM rejects the class,
+   * compile() returns null.
+   */
+  private static class JitProgram implements Executable
+  {
+    private static final int MAX_CODE_SIZE = 8000;
+    private static final int SEGMENT_SIZE = 128;
+    private static final int WARM_UP_RUNS = 5000;
+    private static final long MAX_WARM_UP_NANOS = 60_000_000_000L;
+    private static final MethodType RUN_TYPE =
+      MethodType.methodType(int.class, int.class, int[].class);
+    private static final MethodType SEGMENT_TYPE =
+      MethodType.methodType(int.class, int.class, int[].class,
+                            boolean[].class);
+
+    private final MethodHandle run;
+    private final int[] registers;
+
+    private JitProgram(final MethodHandle run)
+    {
+      this.run = run;
+      registers = new int[2];
+    }
+
+    private static JitProgram compile(final Bytecode code)
+    {
+      final byte[] classFile = new ProgramCompiler(code).compile();
+      if (classFile == null) return null;
+      try {
+        final MethodHandles.Lookup lookup =
+          MethodHandles.lookup().defineHiddenClass(classFile, true);
+        return new JitProgram(lookup.findStatic(lookup.lookupClass(),
+                                                "run", RUN_TYPE));
+      } catch (final LinkageError e) {
+        System.err.println("compiled program rejected: " + e);
+        return null;
+      } catch (final ReflectiveOperationException e) {
+        throw new RuntimeException("failed loading compiled program", e);
+      }
+    }
+
+    public ExitCode execute(final int flippedAdr)
+    {
+      final int result;
+      try {
+        result = (int)run.invokeExact(flippedAdr, registers);
+      } catch (final Throwable t) {
+        throw new RuntimeException("compiled program failed", t);
+      }
+      if (result == 2) {
+        throw new RuntimeException("pc out of range: " + registers[0]);
+      }
+      return result == 0 ? ExitCode.SEG_FAULT : ExitCode.LOOP_DETECTED;
+    }
+
+    /**
+     * Each run enters every segment on its path at least once, but
+     * with hundreds of segments, HotSpot needs many runs to compile
+     * all of them with C2, and far longer than for the single loop of
+     * the bytecode engine.  Hence runs the program in batches until a
+     * whole batch passes without the JVM compiling anything.  Returns
+     * false if compilation does not settle within MAX_WARM_UP_NANOS.
+     */
+    private boolean warmUp()
+    {
+      final CompilationMXBean compiler =
+        ManagementFactory.getCompilationMXBean();
+      final boolean monitored =
+        (compiler != null) && compiler.isCompilationTimeMonitoringSupported();
+      final long deadline = System.nanoTime() + MAX_WARM_UP_NANOS;
+      do {
+        final long compilationTime =
+          monitored ? compiler.getTotalCompilationTime() : 0;
+        for (int run = 0; run < WARM_UP_RUNS; run++) execute(-1);
+        if (!monitored ||
+            (compiler.getTotalCompilationTime() == compilationTime))
+          return true;
+      } while (System.nanoTime() < deadline);
+      return false;
+    }
+
+    public int getPc() { return registers[0]; }
+
+    public int getAcc() { return registers[1]; }
+  }
+
+  /**
+   * Minimal class file writer for JitProgram.
+   */
+  private static class ProgramCompiler
+  {
+    private static final int LOCAL_FLIPPED = 0;
+    private static final int LOCAL_REGISTERS = 1;
+    private static final int LOCAL_VISITED = 2;
+    private static final int LOCAL_ACC = 3;
+    private static final int LOCAL_PC = 4;
+
+    private static final int RESULT_TERMINATED = 0;
+    private static final int RESULT_LOOP = 1;
+    private static final int RESULT_FAULT = 2;
+    private static final int RESULT_CONTINUE = 3;
+
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC = 0x12;
+    private static final int LDC_W = 0x13;
+    private static final int ILOAD = 0x15;
+    private static final int ALOAD = 0x19;
+    private static final int IALOAD = 0x2e;
+    private static final int BALOAD = 0x33;
+    private static final int ISTORE = 0x36;
+    private static final int ASTORE = 0x3a;
+    private static final int IASTORE = 0x4f;
+    private static final int BASTORE = 0x54;
+    private static final int POP = 0x57;
+    private static final int DUP = 0x59;
+    private static final int IADD = 0x60;
+    private static final int ISUB = 0x64;
+    private static final int IDIV = 0x6c;
+    private static final int IINC = 0x84;
+    private static final int IFNE = 0x9a;
+    private static final int IF_ICMPEQ = 0x9f;
+    private static final int IF_ICMPNE = 0xa0;
+    private static final int GOTO = 0xa7;
+    private static final int TABLESWITCH = 0xaa;
+    private static final int IRETURN = 0xac;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int NEWARRAY = 0xbc;
+    private static final int WIDE = 0xc4;
+    private static final int T_BOOLEAN = 4;
+
+    private final Bytecode code;
+    private final int length;
+    private final BitSet blockStarts;
+    private final ByteArrayOutputStream constants;
+    private final HashMap<Object, Integer> constantIndex;
+    private final ArrayList<byte[]> methods;
+
+    /**
+     * Code of the method currently being written, with its labels.
+     * In a segment, labels 0..to-from-1 are the addresses from..to-1,
+     * followed by the exits; further labels are allocated for jump
+     * targets outside of the segment.  Each fixup is a triple of the
+     * position to patch, the label, and the position that the offset
+     * is relative to; offsets of tableswitch are 32 bits wide, those
+     * of branches 16 bits.
+     */
+    private ByteArrayOutputStream method;
+    private ArrayList<Integer> labelPos;
+    private ArrayList<int[]> fixups;
+    private ArrayList<int[]> wideFixups;
+    private HashMap<Integer, Integer> externalLabels;
+    private int from;
+    private int to;
+    private int terminatedLabel;
+    private int loopLabel;
+    private int faultLabel;
+    private int continueLabel;
+
+    private ProgramCompiler(final Bytecode code)
+    {
+      this.code = code;
+      length = code.opcode.length;
+      blockStarts = findBlockStarts();
+      constants = new ByteArrayOutputStream();
+      constantIndex = new HashMap<Object, Integer>();
+      methods = new ArrayList<byte[]>();
+    }
+
+    private void beginMethod()
+    {
+      method = new ByteArrayOutputStream();
+      labelPos = new ArrayList<Integer>();
+      fixups = new ArrayList<int[]>();
+      wideFixups = new ArrayList<int[]>();
+      externalLabels = new HashMap<Integer, Integer>();
+    }
+
+    private int newLabel()
+    {
+      labelPos.add(-1);
+      return labelPos.size() - 1;
+    }
+
+    private void bind(final int label)
+    {
+      labelPos.set(label, method.size());
+    }
+
+    private int constant(final Object key, final int tag, final byte[] data)
+    {
+      final Integer index = constantIndex.get(key);
+      if (index != null) return index;
+      constants.write(tag);
+      constants.writeBytes(data);
+      final int newIndex = constantIndex.size() + 1;
+      constantIndex.put(key, newIndex);
+      return newIndex;
+    }
+
+    private static byte[] shorts(final int... values)
+    {
+      final byte[] data = new byte[2 * values.length];
+      for (int i = 0; i < values.length; i++) {
+        data[2 * i] = (byte)(values[i] >> 8);
+        data[2 * i + 1] = (byte)values[i];
+      }
+      return data;
+    }
+
+    private int utf8(final String s)
+    {
+      final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      final byte[] data = new byte[bytes.length + 2];
+      data[0] = (byte)(bytes.length >> 8);
+      data[1] = (byte)bytes.length;
+      System.arraycopy(bytes, 0, data, 2, bytes.length);
+      return constant("utf8:" + s, 1, data);
+    }
+
+    private int classRef(final String name)
+    {
+      return constant("class:" + name, 7, shorts(utf8(name)));
+    }
+
+    private int methodRef(final String className, final String name,
+                          final String descriptor)
+    {
+      final int nameAndType =
+        constant("nameAndType:" + name + descriptor, 12,
+                 shorts(utf8(name), utf8(descriptor)));
+      return constant("method:" + className + "." + name + descriptor, 10,
+                      shorts(classRef(className), nameAndType));
+    }
+
+    private int integer(final int value)
+    {
+      return constant(value, 3,
+                      new byte[] {
+                        (byte)(value >> 24), (byte)(value >> 16),
+                        (byte)(value >> 8), (byte)value
+                      });
+    }
+
+    private void emit(final int... bytes)
+    {
+      for (final int b : bytes) method.write(b);
+    }
+
+    private void emitShort(final int value)
+    {
+      emit(value >> 8, value);
+    }
+
+    private void emitPush(final int value)
+    {
+      if ((value >= -1) && (value <= 5)) {
+        emit(ICONST_0 + value);
+      } else if ((value >= Byte.MIN_VALUE) && (value <= Byte.MAX_VALUE)) {
+        emit(BIPUSH, value);
+      } else if ((value >= Short.MIN_VALUE) && (value <= Short.MAX_VALUE)) {
+        emit(SIPUSH);
+        emitShort(value);
+      } else {
+        final int index = integer(value);
+        if (index < 256) {
+          emit(LDC, index);
+        } else {
+          emit(LDC_W);
+          emitShort(index);
+        }
+      }
+    }
+
+    private void emitBranch(final int opcode, final int label)
+    {
+      fixups.add(new int[] { method.size() + 1, label, method.size() });
+      emit(opcode, 0, 0);
+    }
+
+    /**
+     * Emits a tableswitch over the cases 0..labels.length-1.
+     */
+    private void emitTableSwitch(final int defaultLabel, final int[] labels)
+    {
+      final int base = method.size();
+      emit(TABLESWITCH);
+      while (method.size() % 4 != 0) emit(0);
+      wideFixups.add(new int[] { method.size(), defaultLabel, base });
+      emit(0, 0, 0, 0);
+      emit(0, 0, 0, 0);
+      final int high = labels.length - 1;
+      emit(high >> 24, high >> 16, high >> 8, high);
+      for (final int label : labels) {
+        wideFixups.add(new int[] { method.size(), label, base });
+        emit(0, 0, 0, 0);
+      }
+    }
+
+    private int targetLabel(final int target)
+    {
+      if (target == length) return terminatedLabel;
+      if ((target >= from) && (target < to)) return target - from;
+      Integer label = externalLabels.get(target);
+      if (label == null) {
+        label = newLabel();
+        externalLabels.put(target, label);
+      }
+      return label;
+    }
+
+    private void emitAcc(final int arg)
+    {
+      if ((arg >= Byte.MIN_VALUE) && (arg <= Byte.MAX_VALUE)) {
+        emit(IINC, LOCAL_ACC, arg);
+      } else if ((arg >= Short.MIN_VALUE) && (arg <= Short.MAX_VALUE)) {
+        emit(WIDE, IINC);
+        emitShort(LOCAL_ACC);
+        emitShort(arg);
+      } else {
+        emit(ILOAD, LOCAL_ACC);
+        emitPush(arg);
+        emit(IADD, ISTORE, LOCAL_ACC);
+      }
+    }
+
+    private void emitExit(final int result)
+    {
+      emit(ALOAD, LOCAL_REGISTERS, ICONST_0, ILOAD, LOCAL_PC, IASTORE);
+      emit(ALOAD, LOCAL_REGISTERS, ICONST_0 + 1, ILOAD, LOCAL_ACC, IASTORE);
+      emit(ICONST_0 + result, IRETURN);
+    }
+
+    private BitSet findBlockStarts()
+    {
+      final BitSet blockStarts = new BitSet(length);
+      for (int adr = 0; adr < length; adr += JitProgram.SEGMENT_SIZE) {
+        blockStarts.set(adr);
+      }
+      for (int adr = 0; adr < length; adr++) {
+        if (code.opcode[adr] == Bytecode.ACC) continue;
+        final int target = adr + code.arg[adr];
+        if ((target >= 0) && (target < length)) blockStarts.set(target);
+        if (adr + 1 < length) blockStarts.set(adr + 1);
+      }
+      return blockStarts;
+    }
+
+    /**
+     * Emits the segment for the addresses from..to-1.  On entry, acc
+     * and pc are taken from the registers, and a tableswitch jumps to
+     * pc.  Jumps to addresses of other segments leave the segment with
+     * RESULT_CONTINUE.
+     */
+    private void emitSegment()
+    {
+      for (int adr = from; adr < to; adr++) {
+        newLabel();
+      }
+      terminatedLabel = newLabel();
+      loopLabel = newLabel();
+      faultLabel = newLabel();
+      continueLabel = newLabel();
+      emit(ALOAD, LOCAL_REGISTERS, ICONST_0 + 1, IALOAD, ISTORE, LOCAL_ACC);
+      emit(ALOAD, LOCAL_REGISTERS, ICONST_0, IALOAD, DUP, ISTORE, LOCAL_PC);
+      emitPush(from);
+      emit(ISUB);
+      final int[] entries = new int[to - from];
+      for (int adr = from; adr < to; adr++) {
+        entries[adr - from] = adr - from;
+      }
+      emitTableSwitch(faultLabel, entries);
+      for (int adr = from; adr < to; adr++) {
+        bind(adr - from);
+        if (blockStarts.get(adr)) {
+          emitPush(adr);
+          emit(ISTORE, LOCAL_PC);
+          emit(ALOAD, LOCAL_VISITED, ILOAD, LOCAL_PC, BALOAD);
+          emitBranch(IFNE, loopLabel);
+          emit(ALOAD, LOCAL_VISITED, ILOAD, LOCAL_PC, ICONST_0 + 1, BASTORE);
+        }
+        final int next = targetLabel(adr + 1);
+        final int jump = targetLabel(adr + code.arg[adr]);
+        switch (code.opcode[adr]) {
+        case Bytecode.ACC:
+          emitAcc(code.arg[adr]);
+          if (adr + 1 == to) emitBranch(GOTO, next);
+          break;
+        case Bytecode.JMP:
+          emit(ILOAD, LOCAL_FLIPPED);
+          emitPush(adr);
+          emitBranch(IF_ICMPEQ, next);
+          emitBranch(GOTO, jump);
+          break;
+        default:
+          emit(ILOAD, LOCAL_FLIPPED);
+          emitPush(adr);
+          emitBranch(IF_ICMPEQ, jump);
+          emitBranch(GOTO, next);
+          break;
+        }
+      }
+      for (final int target : externalLabels.keySet()) {
+        bind(externalLabels.get(target));
+        emitPush(target);
+        emit(ISTORE, LOCAL_PC);
+        final boolean inRange = (target >= 0) && (target < length);
+        emitBranch(GOTO, inRange ? continueLabel : faultLabel);
+      }
+      bind(terminatedLabel);
+      emitPush(length);
+      emit(ISTORE, LOCAL_PC);
+      emitExit(RESULT_TERMINATED);
+      bind(loopLabel);
+      emitExit(RESULT_LOOP);
+      bind(faultLabel);
+      emitExit(RESULT_FAULT);
+      bind(continueLabel);
+      emitExit(RESULT_CONTINUE);
+    }
+
+    /**
+     * Emits run(), which calls the segment of pc until it returns a
+     * result other than RESULT_CONTINUE.
+     */
+    private void emitDispatcher(final int segments)
+    {
+      final int loop = newLabel();
+      final int check = newLabel();
+      final int done = newLabel();
+      final int fault = newLabel();
+      final int[] cases = new int[segments];
+      for (int segment = 0; segment < segments; segment++) {
+        cases[segment] = newLabel();
+      }
+      emit(ALOAD, LOCAL_REGISTERS, ICONST_0, ICONST_0, IASTORE);
+      emit(ALOAD, LOCAL_REGISTERS, ICONST_0 + 1, ICONST_0, IASTORE);
+      emitPush(length);
+      emit(NEWARRAY, T_BOOLEAN, ASTORE, LOCAL_VISITED);
+      bind(loop);
+      emit(ALOAD, LOCAL_REGISTERS, ICONST_0, IALOAD);
+      emitPush(JitProgram.SEGMENT_SIZE);
+      emit(IDIV);
+      emitTableSwitch(fault, cases);
+      final String descriptor =
+        JitProgram.SEGMENT_TYPE.toMethodDescriptorString();
+      for (int segment = 0; segment < segments; segment++) {
+        bind(cases[segment]);
+        emit(ILOAD, LOCAL_FLIPPED, ALOAD, LOCAL_REGISTERS,
+             ALOAD, LOCAL_VISITED, INVOKESTATIC);
+        emitShort(methodRef("JitProgram", "seg" + segment, descriptor));
+        emitBranch(GOTO, check);
+      }
+      bind(check);
+      emit(DUP);
+      emitPush(RESULT_CONTINUE);
+      emitBranch(IF_ICMPNE, done);
+      emit(POP);
+      emitBranch(GOTO, loop);
+      bind(done);
+      emit(IRETURN);
+      bind(fault);
+      emit(ICONST_0 + RESULT_FAULT, IRETURN);
+    }
+
+    /**
+     * Resolves the labels of the current method and appends it to the
+     * methods of the class.  Returns false if the method is too large.
+     */
+    private boolean endMethod(final String name, final MethodType type,
+                              final int maxLocals)
+    {
+      if (method.size() > JitProgram.MAX_CODE_SIZE) return false;
+      final byte[] bytes = method.toByteArray();
+      for (final int[] fixup : fixups) {
+        final int offset = labelPos.get(fixup[1]) - fixup[2];
+        bytes[fixup[0]] = (byte)(offset >> 8);
+        bytes[fixup[0] + 1] = (byte)offset;
+      }
+      for (final int[] fixup : wideFixups) {
+        final int offset = labelPos.get(fixup[1]) - fixup[2];
+        for (int i = 0; i < 4; i++) {
+          bytes[fixup[0] + i] = (byte)(offset >> (24 - 8 * i));
+        }
+      }
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      out.writeBytes(shorts(0x0009, // public static
+                            utf8(name),
+                            utf8(type.toMethodDescriptorString()),
+                            1, // attributes
+                            utf8("Code")));
+      final int attributeLength = 12 + bytes.length;
+      out.writeBytes(shorts(attributeLength >> 16, attributeLength,
+                            4, // max stack
+                            maxLocals,
+                            bytes.length >> 16, bytes.length));
+      out.writeBytes(bytes);
+      out.writeBytes(shorts(0, // exception table
+                            0)); // code attributes
+      methods.add(out.toByteArray());
+      return true;
+    }
+
+    /**
+     * Returns the class file, or null if the program is too large.
+     */
+    private byte[] compile()
+    {
+      final int segments =
+        (length + JitProgram.SEGMENT_SIZE - 1) / JitProgram.SEGMENT_SIZE;
+      for (int segment = 0; segment < segments; segment++) {
+        from = segment * JitProgram.SEGMENT_SIZE;
+        to = Math.min(from + JitProgram.SEGMENT_SIZE, length);
+        beginMethod();
+        emitSegment();
+        if (!endMethod("seg" + segment, JitProgram.SEGMENT_TYPE,
+                       LOCAL_PC + 1))
+          return null;
+      }
+      beginMethod();
+      emitDispatcher(segments);
+      if (!endMethod("run", JitProgram.RUN_TYPE, LOCAL_VISITED + 1))
+        return null;
+      final int thisClass = classRef("JitProgram");
+      final int superClass = classRef("java/lang/Object");
+      try {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xcafebabe);
+        out.writeShort(0);
+        out.writeShort(49);
+        out.writeShort(constantIndex.size() + 1);
+        constants.writeTo(out);
+        out.writeShort(0x0031); // public final super
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(0); // interfaces
+        out.writeShort(0); // fields
+        out.writeShort(methods.size());
+        for (final byte[] method : methods) out.write(method);
+        out.writeShort(0); // class attributes
+        out.flush();
+        return bytes.toByteArray();
+      } catch (final IOException e) {
+        throw new RuntimeException("failed writing class file", e);
+      }
+    }
+  }
+
+  private final boolean bruteForce;
+  private final Engine engine;
+
+  private Part2(final boolean bruteForce, final Engine engine)
+  {
+    this.bruteForce = bruteForce;
+    this.engine = engine;
+  }
 
   public Instruction parse(final String unparsed)
   {
@@ -112,7 +784,7 @@ public class Part2
     System.out.println("acc=" + acc);
   }
 
-  private ExitCode executeProgram(final Instruction[] prg)
+  private ExitCode runProgram(final Instruction[] prg)
   {
     pc = 0;
     acc = 0;
@@ -121,19 +793,46 @@ public class Part2
       seen[pc] = true;
       prg[pc].execute();
     }
-    final ExitCode exitCode;
-    if (pc == prg.length) {
+    return pc == prg.length ? ExitCode.SEG_FAULT : ExitCode.LOOP_DETECTED;
+  }
+
+  private void printExitCode(final ExitCode exitCode)
+  {
+    if (exitCode == ExitCode.SEG_FAULT) {
       System.out.println("program terminated normally");
-      printRegisters();
-      exitCode = ExitCode.SEG_FAULT;
     } else {
       System.out.println("program terminated by loop detection");
-      printRegisters();
-      exitCode = ExitCode.LOOP_DETECTED;
     }
+    printRegisters();
+  }
+
+  private ExitCode executeProgram(final Instruction[] prg)
+  {
+    final ExitCode exitCode = runProgram(prg);
+    printExitCode(exitCode);
+    return exitCode;
+  }
+
+  private ExitCode executeBytecode(final Executable code,
+                                   final int flippedAdr)
+  {
+    final ExitCode exitCode = code.execute(flippedAdr);
+    pc = code.getPc();
+    acc = code.getAcc();
+    printExitCode(exitCode);
     return exitCode;
   }
 
+  private Executable createExecutable(final Bytecode code)
+  {
+    if (engine != Engine.JIT) return code;
+    final JitProgram jitProgram = JitProgram.compile(code);
+    if (jitProgram != null) return jitProgram;
+    System.out.println("program not compilable, " +
+                       "falling back to bytecode engine");
+    return code;
+  }
+
   private void iterateOverProgramModifications(final Instruction[] prg)
   {
     for (int adr = 0; adr < prg.length; adr++) {
@@ -156,6 +855,187 @@ public class Part2
     }
   }
 
+  private void iterateOverBytecodeModifications(final Bytecode code)
+  {
+    final Executable executable = createExecutable(code);
+    for (int adr = 0; adr < code.opcode.length; adr++) {
+      if (code.opcode[adr] == Bytecode.ACC) continue;
+      if (executable.execute(adr) == ExitCode.SEG_FAULT) {
+        System.out.println("execute program with modification at " + adr);
+        executeBytecode(executable, adr);
+        break;
+      }
+    }
+  }
+
+  private static int getSuccessor(final Instruction[] prg, final int adr,
+                                  final boolean flipped)
+  {
+    final Instruction instruction = prg[adr];
+    final boolean jumps =
+      flipped ? (instruction instanceof Nop) : (instruction instanceof Jmp);
+    return jumps ? adr + instruction.getArg() : adr + 1;
+  }
+
+  /**
+   * Returns a flag for each address whether execution starting at
+   * that address of the unmodified program terminates, i.e. reaches
+   * the address just behind the last instruction.  Computed by a
+   * backward search from that address along reversed control flow
+   * edges.
+   */
+  private static boolean[] getTerminatingAddresses(final Instruction[] prg)
+  {
+    final int[] predecessorCount = new int[prg.length + 2];
+    for (int adr = 0; adr < prg.length; adr++) {
+      final int successor = getSuccessor(prg, adr, false);
+      if ((successor >= 0) && (successor <= prg.length))
+        predecessorCount[successor + 1]++;
+    }
+    final int[] firstPredecessor = predecessorCount;
+    for (int adr = 0; adr <= prg.length; adr++) {
+      firstPredecessor[adr + 1] += firstPredecessor[adr];
+    }
+    final int[] predecessors = new int[firstPredecessor[prg.length + 1]];
+    final int[] fill = new int[prg.length + 1];
+    for (int adr = 0; adr < prg.length; adr++) {
+      final int successor = getSuccessor(prg, adr, false);
+      if ((successor >= 0) && (successor <= prg.length))
+        predecessors[firstPredecessor[successor] + fill[successor]++] = adr;
+    }
+    final boolean[] terminating = new boolean[prg.length + 1];
+    final int[] queue = new int[prg.length + 1];
+    int head = 0, tail = 0;
+    terminating[prg.length] = true;
+    queue[tail++] = prg.length;
+    while (head < tail) {
+      final int adr = queue[head++];
+      for (int i = firstPredecessor[adr]; i < firstPredecessor[adr + 1]; i++) {
+        final int predecessor = predecessors[i];
+        if (!terminating[predecessor]) {
+          terminating[predecessor] = true;
+          queue[tail++] = predecessor;
+        }
+      }
+    }
+    return terminating;
+  }
+
+  /**
+   * Finds the single nop / jmp flip that makes the program terminate
+   * in linear time: Follow the unmodified execution path until the
+   * loop closes, and at each nop or jmp check whether the flipped
+   * instruction's successor is a terminating address of the
+   * unmodified program.  The path from there cannot pass the flipped
+   * address again, since otherwise the unmodified program would have
+   * terminated, too.  Returns -1 if there is no such flip.
+   */
+  private int findRepairAddress(final Instruction[] prg)
+  {
+    final boolean[] terminating = getTerminatingAddresses(prg);
+    final boolean[] seen = new boolean[prg.length];
+    int adr = 0;
+    while ((adr >= 0) && (adr < prg.length) && !seen[adr]) {
+      seen[adr] = true;
+      if (!(prg[adr] instanceof Acc)) {
+        final int successor = getSuccessor(prg, adr, true);
+        if ((successor >= 0) && (successor <= prg.length) &&
+            terminating[successor])
+          return adr;
+      }
+      adr = getSuccessor(prg, adr, false);
+    }
+    return -1;
+  }
+
+  private void repairProgram(final Instruction[] prg)
+  {
+    final int adr = findRepairAddress(prg);
+    if (adr < 0) {
+      System.out.println("no applicable modification found");
+      return;
+    }
+    System.out.println("execute program with modification at " + adr);
+    if (engine != Engine.OBJECTS) {
+      executeBytecode(createExecutable(new Bytecode(prg)), adr);
+      return;
+    }
+    final Instruction originalInstruction = prg[adr];
+    prg[adr] =
+      (originalInstruction instanceof Nop) ?
+      new Jmp(originalInstruction.getArg()) :
+      new Nop(originalInstruction.getArg());
+    executeProgram(prg);
+    prg[adr] = originalInstruction;
+  }
+
+  /**
+   * Creates a random program that mostly runs forward with short
+   * jumps, and finally jumps back to the start, such that execution
+   * passes most instructions before the loop is detected.
+   */
+  private Instruction[] createRandomProgram(final int size, final long seed)
+  {
+    final Random random = new Random(seed);
+    final Instruction[] prg = new Instruction[size];
+    for (int adr = 0; adr < size - 1; adr++) {
+      final int choice = random.nextInt(4);
+      if (choice < 2) {
+        prg[adr] = new Acc(random.nextInt(19) - 9);
+      } else if (choice == 2) {
+        prg[adr] = new Nop(random.nextInt(19) - 9);
+      } else {
+        prg[adr] = new Jmp(Math.min(1 + random.nextInt(3), size - 1 - adr));
+      }
+    }
+    prg[size - 1] = new Jmp(1 - size);
+    return prg;
+  }
+
+  private void benchmark(final int size)
+  {
+    final int rounds = Math.max(20, 100000000 / size);
+    final int warmUpRounds = rounds / 4;
+    final Instruction[] prg = createRandomProgram(size, 0x2020_0008L);
+    final Bytecode code = new Bytecode(prg);
+    final JitProgram jitProgram = JitProgram.compile(code);
+    final Executable[] executables =
+      jitProgram != null ?
+      new Executable[] { code, jitProgram } : new Executable[] { code };
+    final boolean jitWarm = (jitProgram != null) && jitProgram.warmUp();
+    long objectsNanos = 0;
+    final long[] nanos = new long[executables.length];
+    for (int round = 0; round < warmUpRounds + rounds; round++) {
+      final long start = System.nanoTime();
+      runProgram(prg);
+      if (round >= warmUpRounds) objectsNanos += System.nanoTime() - start;
+      for (int i = 0; i < executables.length; i++) {
+        final Executable executable = executables[i];
+        final long startExecutable = System.nanoTime();
+        executable.execute(-1);
+        if (round >= warmUpRounds)
+          nanos[i] += System.nanoTime() - startExecutable;
+        if ((acc != executable.getAcc()) || (pc != executable.getPc())) {
+          throw new RuntimeException("engines disagree: acc=" + acc + "/" +
+                                     executable.getAcc() + ", pc=" + pc +
+                                     "/" + executable.getPc());
+        }
+      }
+    }
+    System.out.printf("program size: %d instructions, acc=%d%n", size, acc);
+    System.out.printf("objects:  %10.3f us/run%n",
+                      objectsNanos * 1e-3 / rounds);
+    System.out.printf("bytecode: %10.3f us/run%n",
+                      nanos[0] * 1e-3 / rounds);
+    if (jitWarm)
+      System.out.printf("jit:      %10.3f us/run%n",
+                        nanos[1] * 1e-3 / rounds);
+    else if (jitProgram != null)
+      System.out.println("jit:      n/a (still compiling after warm-up)");
+    else
+      System.out.println("jit:      n/a (program not compilable)");
+  }
+
   private void run(final String filePath) throws IOException
   {
     final var reader = new BufferedReader(new FileReader(filePath));
@@ -169,11 +1049,36 @@ public class Part2
     for (final var asmInstruction : lines) {
       prg[adr++] = parse(asmInstruction);
     }
-    iterateOverProgramModifications(prg);
+    if (!bruteForce)
+      repairProgram(prg);
+    else if (engine != Engine.OBJECTS)
+      iterateOverBytecodeModifications(new Bytecode(prg));
+    else
+      iterateOverProgramModifications(prg);
   }
 
   public static void main(final String argv[]) throws IOException
   {
-    new Part2().run("data.txt");
+    boolean bruteForce = false;
+    Engine engine = Engine.OBJECTS;
+    int benchmarkSize = 0;
+    for (int i = 0; i < argv.length; i++) {
+      if (argv[i].equals("--brute-force")) {
+        bruteForce = true;
+      } else if (argv[i].equals("--engine") && (i + 1 < argv.length)) {
+        engine = Engine.valueOf(argv[++i].toUpperCase());
+      } else if (argv[i].equals("--benchmark") && (i + 1 < argv.length)) {
+        benchmarkSize = Integer.parseInt(argv[++i]);
+      } else {
+        throw new IllegalArgumentException("usage: Part2 [--brute-force] " +
+                                           "[--engine objects|bytecode|jit] " +
+                                           "[--benchmark N]");
+      }
+    }
+    final Part2 part2 = new Part2(bruteForce, engine);
+    if (benchmarkSize > 0)
+      part2.benchmark(benchmarkSize);
+    else
+      part2.run("data.txt");
   }
 }
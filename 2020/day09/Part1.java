@@ -1,52 +1,216 @@
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.ArrayList;
 
 public class Part1
 {
-  private Part1() {}
+  private static final int DEFAULT_PREAMBLE = 25;
 
-  private boolean check(final ArrayDeque<Long> previousNumbers, final long sum)
+  private final int preamble;
+  private final boolean pairSums;
+
+  /**
+   * Open addressing hash map from long keys to positive counts, with
+   * linear probing.  Keys whose count drops to 0 are removed by
+   * shifting back subsequent entries of the same probe sequence, such
+   * that the table does not fill up with stale keys when fed with an
+   * endless stream.
+   */
+  private static class LongCounter
   {
-    for (var number1 : previousNumbers) {
-      for (var number2 : previousNumbers) {
-        if (sum == number1 + number2) {
-          return true;
+    private long[] keys;
+    private int[] counts;
+    private int size;
+
+    private LongCounter(final int expectedSize)
+    {
+      final int capacity =
+        Integer.highestOneBit(Math.max(expectedSize, 8) * 2) * 2;
+      keys = new long[capacity];
+      counts = new int[capacity];
+    }
+
+    private static int slot(final long key, final int mask)
+    {
+      final long hash = key * 0x9e3779b97f4a7c15L;
+      return (int)(hash >>> 32) & mask;
+    }
+
+    private int find(final long key)
+    {
+      final int mask = keys.length - 1;
+      int i = slot(key, mask);
+      while ((counts[i] != 0) && (keys[i] != key)) i = (i + 1) & mask;
+      return i;
+    }
+
+    private int get(final long key)
+    {
+      return counts[find(key)];
+    }
+
+    private void add(final long key, final int delta)
+    {
+      int i = find(key);
+      if (counts[i] == 0) {
+        if (delta <= 0) throw new RuntimeException("count below 0");
+        if (2 * (size + 1) > keys.length) {
+          rehash();
+          i = find(key);
+        }
+        keys[i] = key;
+        size++;
+      }
+      counts[i] += delta;
+      if (counts[i] < 0) throw new RuntimeException("count below 0");
+      if (counts[i] == 0) remove(i);
+    }
+
+    private void remove(final int removed)
+    {
+      final int mask = keys.length - 1;
+      int hole = removed;
+      for (int i = (hole + 1) & mask; counts[i] != 0; i = (i + 1) & mask) {
+        final int home = slot(keys[i], mask);
+        if (((i - home) & mask) >= ((i - hole) & mask)) {
+          keys[hole] = keys[i];
+          counts[hole] = counts[i];
+          counts[i] = 0;
+          hole = i;
         }
       }
+      size--;
+    }
+
+    private void rehash()
+    {
+      final long[] oldKeys = keys;
+      final int[] oldCounts = counts;
+      keys = new long[2 * oldKeys.length];
+      counts = new int[keys.length];
+      for (int j = 0; j < oldKeys.length; j++) {
+        if (oldCounts[j] == 0) continue;
+        final int i = find(oldKeys[j]);
+        keys[i] = oldKeys[j];
+        counts[i] = oldCounts[j];
+      }
+    }
+  }
+
+  /**
+   * The preamble window as ring buffer, plus a multiset of its values.
+   * In pair sums mode, the window additionally maintains the multiset
+   * of all sums of two different values in the window.  Then each
+   * check is a single lookup, at the cost of memory quadratic in the
+   * window size.  Without, each check looks up the complement of each
+   * window value.  Either way, updates take O(w) time.
+   */
+  private static class Window
+  {
+    private final long[] ring;
+    private final LongCounter values;
+    private final LongCounter sums;
+    private int size;
+    private int oldest;
+
+    private Window(final int capacity, final boolean pairSums)
+    {
+      ring = new long[capacity];
+      values = new LongCounter(capacity);
+      sums =
+        pairSums ?
+        new LongCounter((int)Math.min((long)capacity * capacity / 2, 1 << 20)) :
+        null;
+    }
+
+    private boolean isFull()
+    {
+      return size == ring.length;
+    }
+
+    private long get(final int i)
+    {
+      return ring[(oldest + i) % ring.length];
+    }
+
+    private boolean check(final long sum)
+    {
+      if (sums != null) return sums.get(sum) > 0;
+      for (int i = 0; i < size; i++) {
+        final long number1 = get(i);
+        final long number2 = sum - number1;
+        if ((number1 != number2) && (values.get(number2) > 0)) return true;
+      }
+      return false;
+    }
+
+    private void updateSums(final long value, final int delta)
+    {
+      if (sums == null) return;
+      for (int i = 0; i < size; i++) {
+        final long other = get(i);
+        if (other != value) sums.add(other + value, delta);
+      }
+    }
+
+    private void removeOldest()
+    {
+      final long value = ring[oldest];
+      oldest = (oldest + 1) % ring.length;
+      size--;
+      values.add(value, -1);
+      updateSums(value, -1);
+    }
+
+    private void add(final long value)
+    {
+      updateSums(value, +1);
+      values.add(value, +1);
+      ring[(oldest + size++) % ring.length] = value;
     }
-    return false;
+  }
+
+  private Part1(final int preamble, final boolean pairSums)
+  {
+    if (preamble < 2)
+      throw new IllegalArgumentException("preamble too short: " + preamble);
+    this.preamble = preamble;
+    this.pairSums = pairSums;
   }
 
   private void run(final String filePath) throws IOException
   {
     final var reader = new BufferedReader(new FileReader(filePath));
-    final var values = new ArrayList<Long>();
+    final Window window = new Window(preamble, pairSums);
     String line;
     while ((line = reader.readLine()) != null) {
-      final var value = Long.parseLong(line);
-      values.add(value);
-    }
-    final ArrayDeque<Long> previousNumbers = new ArrayDeque<Long>();
-    for (final var value : values) {
-      if (previousNumbers.size() < 25) {
-        previousNumbers.add(value);
-      } else {
-        if (!check(previousNumbers, value)) {
+      final long value = Long.parseLong(line);
+      if (window.isFull()) {
+        if (!window.check(value)) {
           System.out.println(value);
           return;
         }
-        previousNumbers.remove();
-        previousNumbers.add(value);
+        window.removeOldest();
       }
+      window.add(value);
     }
     System.out.println("no match");
   }
 
   public static void main(final String argv[]) throws IOException
   {
-    new Part1().run("data.txt");
+    int preamble = DEFAULT_PREAMBLE;
+    boolean pairSums = false;
+    for (int i = 0; i < argv.length; i++) {
+      if (argv[i].equals("--preamble") && (i + 1 < argv.length)) {
+        preamble = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("--pair-sums")) {
+        pairSums = true;
+      } else {
+        throw new IllegalArgumentException("usage: Part1 [--preamble N] " +
+                                           "[--pair-sums]");
+      }
+    }
+    new Part1(preamble, pairSums).run("data.txt");
   }
 }
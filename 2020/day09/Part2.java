@@ -1,48 +1,123 @@
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
 
 public class Part2
 {
-  private Part2() {}
+  private static final int DEFAULT_PREAMBLE = 25;
 
-  private void run(final String filePath) throws IOException
+  private final int preamble;
+  private final Long target;
+
+  private Part2(final int preamble, final Long target)
+  {
+    this.preamble = preamble;
+    this.target = target;
+  }
+
+  private long[] readValues(final String filePath) throws IOException
   {
     final var reader = new BufferedReader(new FileReader(filePath));
-    final var values = new ArrayList<Long>();
+    long[] values = new long[1024];
+    int size = 0;
     String line;
     while ((line = reader.readLine()) != null) {
-      final var value = Long.parseLong(line);
+      final long value = Long.parseLong(line);
       if (value < 0L) throw new RuntimeException("< 0");
-      values.add(value);
+      if (size == values.length) values = Arrays.copyOf(values, 2 * size);
+      values[size++] = value;
     }
+    return Arrays.copyOf(values, size);
+  }
 
-    // result from part 1, may be different for your input data
-    final Long totalSum = 530627549L;
-
-    for (int indexFirst = 0; indexFirst < values.size(); indexFirst++) {
-      long sum = values.get(indexFirst);
-      int indexLast = indexFirst + 1;
-      long min = sum;
-      long max = sum;
-      while ((sum < totalSum) && (indexLast < values.size())) {
-        final long add = values.get(indexLast);
-        if (add > max) max = add;
-        if (add < min) min = add;
-        sum += add;
-        if (sum == totalSum) {
-          System.out.println(min + max);
-          return;
+  /**
+   * Same as part 1: Returns the first number that is not the sum of
+   * two different numbers among the preceding preamble numbers, or
+   * null if there is no such number.
+   */
+  private Long findInvalidNumber(final long[] values)
+  {
+    nextValue:
+    for (int i = preamble; i < values.length; i++) {
+      for (int j = i - preamble; j < i; j++) {
+        for (int k = j + 1; k < i; k++) {
+          if ((values[j] != values[k]) &&
+              (values[j] + values[k] == values[i]))
+            continue nextValue;
         }
-        indexLast++;
       }
+      return values[i];
+    }
+    return null;
+  }
+
+  /**
+   * Two-pointer search for a contiguous range of at least two
+   * numbers that sum up to the target.  Since all numbers are
+   * non-negative, the range's sum only grows when extending it to the
+   * right and only shrinks when dropping numbers from the left, such
+   * that both ends only move forward.  Minimum and maximum of the
+   * range are maintained in monotone deques of indices, such that
+   * each number is pushed and popped at most once.  Returns the sum
+   * of minimum and maximum, or null if there is no such range.
+   */
+  private Long findRange(final long[] values, final long totalSum)
+  {
+    final int[] minDeque = new int[values.length];
+    final int[] maxDeque = new int[values.length];
+    int minHead = 0, minTail = 0;
+    int maxHead = 0, maxTail = 0;
+    int first = 0;
+    long sum = 0;
+    for (int last = 0; last < values.length; last++) {
+      final long value = values[last];
+      while ((minTail > minHead) && (values[minDeque[minTail - 1]] >= value))
+        minTail--;
+      minDeque[minTail++] = last;
+      while ((maxTail > maxHead) && (values[maxDeque[maxTail - 1]] <= value))
+        maxTail--;
+      maxDeque[maxTail++] = last;
+      sum += value;
+      while ((sum > totalSum) && (first < last)) {
+        sum -= values[first];
+        if (minDeque[minHead] == first) minHead++;
+        if (maxDeque[maxHead] == first) maxHead++;
+        first++;
+      }
+      if ((sum == totalSum) && (first < last)) {
+        return values[minDeque[minHead]] + values[maxDeque[maxHead]];
+      }
+    }
+    return null;
+  }
+
+  private void run(final String filePath) throws IOException
+  {
+    final long[] values = readValues(filePath);
+    final Long totalSum = target != null ? target : findInvalidNumber(values);
+    if (totalSum == null) {
+      System.out.println("no invalid number");
+      return;
     }
-    System.out.println("no match");
+    final Long result = findRange(values, totalSum);
+    System.out.println(result != null ? result : "no match");
   }
 
   public static void main(final String argv[]) throws IOException
   {
-    new Part2().run("data.txt");
+    int preamble = DEFAULT_PREAMBLE;
+    Long target = null;
+    for (int i = 0; i < argv.length; i++) {
+      if (argv[i].equals("--preamble") && (i + 1 < argv.length)) {
+        preamble = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("--target") && (i + 1 < argv.length)) {
+        target = Long.parseLong(argv[++i]);
+      } else {
+        throw new IllegalArgumentException("usage: Part2 [--preamble N] " +
+                                           "[--target N]");
+      }
+    }
+    new Part2(preamble, target).run("data.txt");
   }
 }
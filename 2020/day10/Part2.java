@@ -1,34 +1,122 @@
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.math.BigInteger;
 import java.util.Arrays;
 import java.util.ArrayList;
 
 public class Part2
 {
-  private int countCombinations(final boolean[] bits,
-                                final int pos, final boolean value)
+  private static final String DEFAULT_DIFFS = "1,2,3";
+
+  /**
+   * allowed[d] tells whether an adapter may follow another one with a
+   * joltage difference of d.
+   */
+  private final boolean[] allowed;
+  private final boolean big;
+  private final long modulus;
+
+  private Part2(final boolean[] allowed, final boolean big,
+                final long modulus)
+  {
+    this.allowed = allowed;
+    this.big = big;
+    this.modulus = modulus;
+  }
+
+  private static boolean[] parseDiffs(final String diffs)
   {
-    if (pos >= bits.length) return 1;
-    bits[pos] = value;
-    if (bits[pos] ||
-        pos == 0 ||
-        bits[pos -1] ||
-        pos == 1 ||
-        bits[pos - 2])
-    {
-      return
-        countCombinations(bits, pos + 1, false) +
-        countCombinations(bits, pos + 1, true);
+    final var values = new ArrayList<Integer>();
+    int maxDiff = 0;
+    for (final String token : diffs.split(",")) {
+      final int diff = Integer.parseInt(token.trim());
+      if (diff < 1) {
+        throw new IllegalArgumentException("diffs must be positive: " + diff);
+      }
+      values.add(diff);
+      maxDiff = Math.max(maxDiff, diff);
     }
-    return 0;
+    final boolean[] allowed = new boolean[maxDiff + 1];
+    for (final int diff : values) {
+      allowed[diff] = true;
+    }
+    return allowed;
   }
 
-  private int countCombinations(final int seqLen) {
-    final boolean[] bits = new boolean[seqLen];
-    return
-      (countCombinations(bits, 0, false) +
-       countCombinations(bits, 0, true)) >> 1;
+  /*
+   * All counters below follow the same dynamic programming scheme:
+   * The number of arrangements that end with adapter i is the sum
+   * over the numbers of arrangements ending with any lower adapter j
+   * that may directly precede adapter i.  Since the joltages are
+   * sorted, these j form a window behind i, whose lower end only
+   * moves upwards, such that a single pass suffices.  The outlet
+   * (joltage 0) is at index 0, and the device (3 jolts above the
+   * highest adapter) is the last entry, such that the result counts
+   * the arrangements that reach the device under the allowed
+   * differences, whichever adapter they end with.
+   */
+
+  private long countArrangements(final int[] joltages)
+  {
+    final int maxDiff = allowed.length - 1;
+    final long[] ways = new long[joltages.length];
+    ways[0] = 1;
+    int lo = 0;
+    for (int i = 1; i < joltages.length; i++) {
+      while (joltages[i] - joltages[lo] > maxDiff) lo++;
+      long sum = 0;
+      for (int j = lo; j < i; j++) {
+        final int diff = joltages[i] - joltages[j];
+        if ((diff > 0) && allowed[diff]) sum = Math.addExact(sum, ways[j]);
+      }
+      ways[i] = sum;
+    }
+    return ways[joltages.length - 1];
+  }
+
+  private long countArrangementsModulo(final int[] joltages)
+  {
+    final int maxDiff = allowed.length - 1;
+    final long[] ways = new long[joltages.length];
+    ways[0] = 1 % modulus;
+    int lo = 0;
+    for (int i = 1; i < joltages.length; i++) {
+      while (joltages[i] - joltages[lo] > maxDiff) lo++;
+      long sum = 0;
+      for (int j = lo; j < i; j++) {
+        final int diff = joltages[i] - joltages[j];
+        if ((diff > 0) && allowed[diff]) {
+          sum += ways[j];
+          if (sum >= modulus) sum -= modulus;
+        }
+      }
+      ways[i] = sum;
+    }
+    return ways[joltages.length - 1];
+  }
+
+  /**
+   * Since the counts grow exponentially, entries that dropped out of
+   * the window are released, such that memory stays proportional to
+   * the window rather than to the square of the chain length.
+   */
+  private BigInteger countArrangementsBig(final int[] joltages)
+  {
+    final int maxDiff = allowed.length - 1;
+    final BigInteger[] ways = new BigInteger[joltages.length];
+    ways[0] = BigInteger.ONE;
+    int lo = 0;
+    for (int i = 1; i < joltages.length; i++) {
+      while (joltages[i] - joltages[lo] > maxDiff) ways[lo++] = null;
+      BigInteger sum = BigInteger.ZERO;
+      for (int j = lo; j < i; j++) {
+        final int diff = joltages[i] - joltages[j];
+        if ((diff > 0) && allowed[diff]) sum = sum.add(ways[j]);
+      }
+      ways[i] = sum;
+    }
+    return ways[joltages.length - 1];
   }
 
   private void run(final String filePath) throws IOException
@@ -46,29 +134,41 @@ public class Part2
     }
     Arrays.sort(joltages, 0, joltages.length - 1);
     joltages[joltages.length - 1] = joltages[joltages.length - 2] + 3;
-    int seqLen = 0;
-    int prev = 0;
-    long result = 1;
-    for (int i = 0; i < joltages.length; i++) {
-      final int curr = joltages[i];
-      if (curr - prev == 1) {
-        seqLen++;
-      } else {
-        if (seqLen >= 2) {
-          result *= countCombinations(seqLen - 1);
-        }
-        seqLen = 0;
+    if (big) {
+      System.out.println(countArrangementsBig(joltages));
+    } else if (modulus > 0) {
+      System.out.println(countArrangementsModulo(joltages));
+    } else {
+      try {
+        System.out.println(countArrangements(joltages));
+      } catch (final ArithmeticException e) {
+        throw new RuntimeException("number of arrangements exceeds long, " +
+                                   "use --big or --mod M");
       }
-      prev = curr;
     }
-    if (seqLen >= 2) {
-      result *= countCombinations(seqLen - 1);
-    }
-    System.out.println(result);
   }
 
   public static void main(final String argv[]) throws IOException
   {
-    new Part2().run("data.txt");
+    String diffs = DEFAULT_DIFFS;
+    boolean big = false;
+    long modulus = 0;
+    for (int i = 0; i < argv.length; i++) {
+      if (argv[i].equals("--diffs") && (i + 1 < argv.length)) {
+        diffs = argv[++i];
+      } else if (argv[i].equals("--big")) {
+        big = true;
+      } else if (argv[i].equals("--mod") && (i + 1 < argv.length)) {
+        modulus = Long.parseLong(argv[++i]);
+        if ((modulus < 1) || (modulus > Long.MAX_VALUE / 2)) {
+          throw new IllegalArgumentException("modulus out of range: " +
+                                             modulus);
+        }
+      } else {
+        throw new IllegalArgumentException("usage: Part2 [--diffs D,D,...] " +
+                                           "[--big | --mod M]");
+      }
+    }
+    new Part2(parseDiffs(diffs), big, modulus).run("data.txt");
   }
 }
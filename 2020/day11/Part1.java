@@ -3,11 +3,17 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.stream.Stream;
 
 public class Part1
 {
-  private Part1() {}
+  private final boolean incremental;
+
+  private Part1(final boolean incremental)
+  {
+    this.incremental = incremental;
+  }
 
   private enum Direction {
     EAST(+1, 0),
@@ -122,6 +128,86 @@ public class Part1
     return new_sum;
   }
 
+  /**
+   * Incremental variant of createNextGen() that only re-evaluates
+   * the seats in the frontier and updates the map in place.  A seat's
+   * next state depends only on itself and its adjacent seats, so any
+   * seat that may change in the next generation is a seat that
+   * changed in this generation, or a neighbour thereof.  The frontier
+   * for the next generation is written to nextFrontier.  Cells are
+   * identified by their row-major index y * width + x.
+   */
+  private void createNextGenIncremental(final CellType[][] map,
+                                        final BitSet frontier,
+                                        final BitSet nextFrontier,
+                                        final int[] changed)
+  {
+    final int width = map[0].length;
+    int changedSize = 0;
+    for (int index = frontier.nextSetBit(0); index >= 0;
+         index = frontier.nextSetBit(index + 1)) {
+      final int x = index % width;
+      final int y = index / width;
+      final CellType cellType = map[y][x];
+      if (((cellType == CellType.EMPTY_SEAT) &&
+           !haveAdjacentOccupiedSeats(map, x, y, 1)) ||
+          ((cellType == CellType.OCCUPIED_SEAT) &&
+           haveAdjacentOccupiedSeats(map, x, y, 4)))
+      {
+        changed[changedSize++] = index;
+      }
+    }
+    nextFrontier.clear();
+    for (int i = 0; i < changedSize; i++) {
+      final int index = changed[i];
+      final int x = index % width;
+      final int y = index / width;
+      map[y][x] =
+        map[y][x] == CellType.EMPTY_SEAT ?
+        CellType.OCCUPIED_SEAT : CellType.EMPTY_SEAT;
+      nextFrontier.set(index);
+      for (final Direction d : Direction.values()) {
+        final int nx = x + d.getDX();
+        final int ny = y + d.getDY();
+        final CellType neighbour = getCell(map, nx, ny);
+        if ((neighbour == CellType.EMPTY_SEAT) ||
+            (neighbour == CellType.OCCUPIED_SEAT))
+          nextFrontier.set(ny * width + nx);
+      }
+    }
+  }
+
+  private int runIncremental(final CellType[][] map)
+  {
+    final int height = map.length;
+    final int width = map[0].length;
+    final int[] changed = new int[height * width];
+    BitSet frontier = new BitSet(height * width);
+    BitSet nextFrontier = new BitSet(height * width);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        if (map[y][x] != CellType.FLOOR) frontier.set(y * width + x);
+      }
+    }
+    int generation = 0;
+    while (!frontier.isEmpty()) {
+      final int touched = frontier.cardinality();
+      createNextGenIncremental(map, frontier, nextFrontier, changed);
+      final BitSet swapFrontier = frontier;
+      frontier = nextFrontier;
+      nextFrontier = swapFrontier;
+      System.out.printf("generation %d: %d cells touched%n",
+                        ++generation, touched);
+    }
+    int sum = 0;
+    for (final CellType[] row : map) {
+      for (final CellType cell : row) {
+        if (cell == CellType.OCCUPIED_SEAT) sum++;
+      }
+    }
+    return sum;
+  }
+
   private void printMap(final CellType[][] map)
   {
     for (int y = 0; y < map.length; y++) {
@@ -157,6 +243,10 @@ public class Part1
         }
       }
     }
+    if (incremental) {
+      System.out.println(runIncremental(originMap));
+      return;
+    }
     int prevSum = -1;
     int sum = 0;
     while (sum != prevSum) {
@@ -171,6 +261,14 @@ public class Part1
 
   public static void main(final String argv[]) throws IOException
   {
-    new Part1().run("data.txt");
+    boolean incremental = false;
+    for (final String arg : argv) {
+      if (arg.equals("--incremental")) {
+        incremental = true;
+      } else {
+        throw new IllegalArgumentException("usage: Part1 [--incremental]");
+      }
+    }
+    new Part1(incremental).run("data.txt");
   }
 }
@@ -3,44 +3,15 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.stream.Stream;
+import java.util.BitSet;
 
 public class Part2
 {
-  private Part2() {}
-
-  private enum Direction {
-    EAST(+1, 0),
-    NORTH_EAST(+1, +1),
-    NORTH(0, +1),
-    NORTH_WEST(-1, +1),
-    WEST(-1, 0),
-    SOUTH_WEST(-1, -1),
-    SOUTH(0, -1),
-    SOUTH_EAST(+1, -1);
-
-    private final int dx;
-    private final int dy;
-
-    private Direction()
-    {
-      throw new UnsupportedOperationException("empty constructor");
-    }
-
-    private Direction(final int dx, final int dy)
-    {
-      this.dx = dx;
-      this.dy = dy;
-    }
-
-    public int getDX() { return dx; }
-
-    public int getDY() { return dy; }
+  private final boolean incremental;
 
-    public static Stream<Direction> stream()
-    {
-      return Arrays.stream(Direction.values());
-    }
+  private Part2(final boolean incremental)
+  {
+    this.incremental = incremental;
   }
 
   private enum CellType {
@@ -68,68 +39,191 @@ public class Part2
     public String toString() { return symbolAsString; }
   }
 
-  private CellType getCell(final CellType[][] map, final int x, final int y)
+  private static final byte EMPTY = 0;
+  private static final byte OCCUPIED = 1;
+
+  private interface EdgeConsumer
   {
-    if ((y < 0) ||
-        (y >= map.length) ||
-        (x < 0) ||
-        (x >= map[0].length))
-      return CellType.OUTSIDE;
-    return map[y][x];
+    void accept(final int seat1, final int seat2);
   }
 
-  private boolean isVisibleOccupiedSeat(final CellType[][] map,
-                                        final int x0, final int y0,
-                                        final int dx, final int dy)
+  /**
+   * Visibility graph of all seats in compressed sparse row layout:
+   * The visible seats of seat s are neighbours[firstNeighbour[s]]
+   * up to (excluding) neighbours[firstNeighbour[s + 1]].  Since
+   * floor never changes, this graph is the same for all generations,
+   * such that we do the ray casting only once.
+   */
+  private static class SeatGraph
   {
-    assert (x0 != 0) || (y0 != 0);
-    int x = x0;
-    int y = y0;
-    while (true) {
-      x += dx;
-      y += dy;
-      final CellType cellType = getCell(map, x, y);
-      if (cellType == CellType.OCCUPIED_SEAT) return true;
-      if (cellType == CellType.EMPTY_SEAT) return false;
-      if (cellType == CellType.OUTSIDE) return false;
+    private final int seats;
+    private final int[] firstNeighbour;
+    private final int[] neighbours;
+
+    private SeatGraph(final int seats, final int[] degree)
+    {
+      this.seats = seats;
+      firstNeighbour = new int[seats + 1];
+      for (int seat = 0; seat < seats; seat++) {
+        firstNeighbour[seat + 1] = firstNeighbour[seat] + degree[seat];
+      }
+      neighbours = new int[firstNeighbour[seats]];
     }
   }
 
-  private boolean haveVisibleOccupiedSeats(final CellType[][] map,
-                                           final int x, final int y,
-                                           final int count)
+  /**
+   * Calls the consumer once for each pair of seats that see each
+   * other.  Visibility is symmetric, so we only need to look into 4
+   * of the 8 directions.  Scanning the map in row-major order, for
+   * each direction we keep track of the most recently visited seat
+   * per line (row, column, diagonal, anti-diagonal); this seat is
+   * exactly the first seat visible from the current cell when looking
+   * backwards along that line.  Seats are numbered in row-major
+   * order.
+   */
+  private static int sweepVisibleSeats(final CellType[][] map,
+                                       final EdgeConsumer consumer)
   {
-    return
-      Direction.stream().
-      filter(d -> isVisibleOccupiedSeat(map, x, y, d.getDX(), d.getDY())).
-      limit(count).
-      count() == count;
+    final int height = map.length;
+    final int width = map[0].length;
+    final int[] lastInColumn = new int[width];
+    final int[] lastInDiagonal = new int[width + height - 1];
+    final int[] lastInAntiDiagonal = new int[width + height - 1];
+    Arrays.fill(lastInColumn, -1);
+    Arrays.fill(lastInDiagonal, -1);
+    Arrays.fill(lastInAntiDiagonal, -1);
+    int seat = 0;
+    for (int y = 0; y < height; y++) {
+      int lastInRow = -1;
+      for (int x = 0; x < width; x++) {
+        if (map[y][x] == CellType.FLOOR) continue;
+        final int diagonal = x - y + height - 1;
+        final int antiDiagonal = x + y;
+        if (lastInRow >= 0) consumer.accept(lastInRow, seat);
+        if (lastInColumn[x] >= 0) consumer.accept(lastInColumn[x], seat);
+        if (lastInDiagonal[diagonal] >= 0)
+          consumer.accept(lastInDiagonal[diagonal], seat);
+        if (lastInAntiDiagonal[antiDiagonal] >= 0)
+          consumer.accept(lastInAntiDiagonal[antiDiagonal], seat);
+        lastInRow = seat;
+        lastInColumn[x] = seat;
+        lastInDiagonal[diagonal] = seat;
+        lastInAntiDiagonal[antiDiagonal] = seat;
+        seat++;
+      }
+    }
+    return seat;
   }
 
-  private int createNextGen(final CellType[][] originMap,
-                            final CellType[][] updateMap,
-                            final int sum)
+  private SeatGraph createSeatGraph(final CellType[][] map)
   {
-    int new_sum = sum;
-    for (int y = 0; y < originMap.length; y++) {
-      for (int x = 0; x < originMap[0].length; x++) {
-        final CellType originCellType = originMap[y][x];
-        final CellType updateCellType;
-        if ((originCellType == CellType.EMPTY_SEAT) &&
-            !haveVisibleOccupiedSeats(originMap, x, y, 1))
-        {
-          updateCellType = CellType.OCCUPIED_SEAT;
-          new_sum++;
-        } else if ((originCellType == CellType.OCCUPIED_SEAT) &&
-                   haveVisibleOccupiedSeats(originMap, x, y, 5))
-        {
-          updateCellType = CellType.EMPTY_SEAT;
-          new_sum--;
-        } else { updateCellType = originCellType; }
-        updateMap[y][x] = updateCellType;
+    int seats = 0;
+    for (final CellType[] row : map) {
+      for (final CellType cell : row) {
+        if (cell != CellType.FLOOR) seats++;
       }
     }
-    return new_sum;
+    final int[] degree = new int[seats];
+    sweepVisibleSeats(map, (seat1, seat2) -> {
+        degree[seat1]++;
+        degree[seat2]++;
+      });
+    final SeatGraph graph = new SeatGraph(seats, degree);
+    final int[] fill = Arrays.copyOf(graph.firstNeighbour, seats);
+    sweepVisibleSeats(map, (seat1, seat2) -> {
+        graph.neighbours[fill[seat1]++] = seat2;
+        graph.neighbours[fill[seat2]++] = seat1;
+      });
+    return graph;
+  }
+
+  private int createNextGen(final SeatGraph graph,
+                            final byte[] originSeats,
+                            final byte[] updateSeats)
+  {
+    final int[] firstNeighbour = graph.firstNeighbour;
+    final int[] neighbours = graph.neighbours;
+    int changes = 0;
+    for (int seat = 0; seat < graph.seats; seat++) {
+      int occupied = 0;
+      for (int i = firstNeighbour[seat]; i < firstNeighbour[seat + 1]; i++) {
+        occupied += originSeats[neighbours[i]];
+      }
+      final byte originSeat = originSeats[seat];
+      final byte updateSeat;
+      if ((originSeat == EMPTY) && (occupied == 0)) {
+        updateSeat = OCCUPIED;
+        changes++;
+      } else if ((originSeat == OCCUPIED) && (occupied >= 5)) {
+        updateSeat = EMPTY;
+        changes++;
+      } else { updateSeat = originSeat; }
+      updateSeats[seat] = updateSeat;
+    }
+    return changes;
+  }
+
+  /**
+   * Incremental variant of createNextGen() that only re-evaluates
+   * the seats in the frontier and updates the seats in place.  A
+   * seat's next state depends only on itself and its visible seats,
+   * so any seat that may change in the next generation is a seat
+   * that changed in this generation, or a neighbour thereof.  The
+   * frontier for the next generation is written to nextFrontier.
+   * Keeping the frontier as a bit set rather than as a list visits
+   * the seats in ascending order, such that memory access remains
+   * mostly sequential.
+   */
+  private void createNextGenIncremental(final SeatGraph graph,
+                                        final byte[] seats,
+                                        final BitSet frontier,
+                                        final BitSet nextFrontier,
+                                        final int[] changed)
+  {
+    final int[] firstNeighbour = graph.firstNeighbour;
+    final int[] neighbours = graph.neighbours;
+    int changedSize = 0;
+    for (int seat = frontier.nextSetBit(0); seat >= 0;
+         seat = frontier.nextSetBit(seat + 1)) {
+      int occupied = 0;
+      for (int j = firstNeighbour[seat]; j < firstNeighbour[seat + 1]; j++) {
+        occupied += seats[neighbours[j]];
+      }
+      if (((seats[seat] == EMPTY) && (occupied == 0)) ||
+          ((seats[seat] == OCCUPIED) && (occupied >= 5)))
+      {
+        changed[changedSize++] = seat;
+      }
+    }
+    nextFrontier.clear();
+    for (int i = 0; i < changedSize; i++) {
+      final int seat = changed[i];
+      seats[seat] ^= OCCUPIED;
+      nextFrontier.set(seat);
+      for (int j = firstNeighbour[seat]; j < firstNeighbour[seat + 1]; j++) {
+        nextFrontier.set(neighbours[j]);
+      }
+    }
+  }
+
+  private byte[] runIncremental(final SeatGraph graph)
+  {
+    final byte[] seats = new byte[graph.seats];
+    final int[] changed = new int[graph.seats];
+    BitSet frontier = new BitSet(graph.seats);
+    BitSet nextFrontier = new BitSet(graph.seats);
+    frontier.set(0, graph.seats);
+    int generation = 0;
+    while (!frontier.isEmpty()) {
+      final int touched = frontier.cardinality();
+      createNextGenIncremental(graph, seats, frontier, nextFrontier, changed);
+      final BitSet swapFrontier = frontier;
+      frontier = nextFrontier;
+      nextFrontier = swapFrontier;
+      System.out.printf("generation %d: %d cells touched%n",
+                        ++generation, touched);
+    }
+    return seats;
   }
 
   private void printMap(final CellType[][] map)
@@ -150,9 +244,7 @@ public class Part2
     while ((line = reader.readLine()) != null) {
       values.add(line);
     }
-    CellType[][] originMap =
-      new CellType[values.size()][values.get(0).length()];
-    CellType[][] updateMap =
+    final CellType[][] originMap =
       new CellType[values.size()][values.get(0).length()];
     for (int y = 0; y < values.size(); y++) {
       final String row = values.get(y);
@@ -167,20 +259,36 @@ public class Part2
         }
       }
     }
-    int prevSum = -1;
+    final SeatGraph graph = createSeatGraph(originMap);
+    byte[] originSeats;
+    if (incremental) {
+      originSeats = runIncremental(graph);
+    } else {
+      originSeats = new byte[graph.seats];
+      byte[] updateSeats = new byte[graph.seats];
+      while (createNextGen(graph, originSeats, updateSeats) > 0) {
+        final byte[] swapSeats = originSeats;
+        originSeats = updateSeats;
+        updateSeats = swapSeats;
+      }
+    }
     int sum = 0;
-    while (sum != prevSum) {
-      prevSum = sum;
-      sum = createNextGen(originMap, updateMap, prevSum);
-      final CellType[][] swapMap = originMap;
-      originMap = updateMap;
-      updateMap = swapMap;
+    for (final byte seat : originSeats) {
+      sum += seat;
     }
     System.out.println(sum);
   }
 
   public static void main(final String argv[]) throws IOException
   {
-    new Part2().run("data.txt");
+    boolean incremental = false;
+    for (final String arg : argv) {
+      if (arg.equals("--incremental")) {
+        incremental = true;
+      } else {
+        throw new IllegalArgumentException("usage: Part2 [--incremental]");
+      }
+    }
+    new Part2(incremental).run("data.txt");
   }
 }
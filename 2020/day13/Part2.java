@@ -1,6 +1,7 @@
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.math.BigInteger;
 import java.util.ArrayList;
 
 public class Part2
@@ -14,7 +15,7 @@ public class Part2
    * that fulfills the equation z ≡ a (mod n), where "a" denotes the
    * departure and "n" the length of the cycle.
    */
-  private class ServiceCycle {
+  private static class ServiceCycle {
     public final long departure; // "a"
     public final long length; // "n"
 
@@ -63,7 +64,7 @@ public class Part2
 
     /**
      * Given a value a, compute a return value b (the "inverse"), such
-     * that (a * b) mod m = 0.
+     * that (a * b) mod m = 1.  Requires a and m to be coprime.
      *
      * Used by the chineseIntersection() method only.  Inspired by:
      * https://rosettacode.org/wiki/Chinese_remainder_theorem
@@ -87,35 +88,61 @@ public class Part2
     }
 
     /**
-     * Intersection determination of service cycles inspired by ideas
-     * from the Chinese remainder theorem.
+     * Computes (a * b) mod m for 0 <= a, b < m without overflow: The
+     * full 128 bit product is reduced bit by bit, with the high word
+     * already being less than m.
      *
-     * This is a much more cleaner and (for big data) faster solution
-     * compared to the above brute force algorithm.  I implemented
-     * this interection algorithm only after I had submitted the
-     * correct result with help of the above brute force algorithm.
+     * Used by the chineseIntersection() method only.
+     */
+    private static long mulMod(final long a, final long b, final long m)
+    {
+      final long high = Math.multiplyHigh(a, b);
+      final long low = a * b;
+      if ((high == 0) && (low >= 0)) return low % m;
+      long rem = high % m;
+      for (int bit = 63; bit >= 0; bit--) {
+        rem = (rem << 1) | ((low >>> bit) & 1);
+        if (Long.compareUnsigned(rem, m) >= 0) rem -= m;
+      }
+      return rem;
+    }
+
+    /**
+     * Intersection determination of service cycles by the
+     * generalized Chinese remainder theorem, i.e. the cycle lengths
+     * need not be coprime: With g = gcd(n1, n2), the system z ≡ a1
+     * (mod n1), z ≡ a2 (mod n2) is solvable iff g divides a2 - a1, and
+     * then z = a1 + n1 * t with t ≡ (a2 - a1) / g * (n1 / g)^-1
+     * (mod n2 / g), which is unique modulo lcm(n1, n2).
      *
-     * FIXME: In some corner cases (typically for very large values),
-     * this method still computes bad values.  Probably, the reason is
-     * an arithmetic overflow, which probably can be fixed by using
-     * big integers.  Until then, this class internally still uses the
-     * above brute force method, which still works quite fast.
+     * All intermediate products are computed modulo n2 / g with
+     * mulMod(), and the final value a1 + n1 * t is less than the new
+     * length, such that nothing overflows as long as the new length
+     * fits into a long.  Otherwise, returns null, such that the caller
+     * can continue with BigServiceCycle.
      */
     private ServiceCycle chineseIntersect(final long otherDeparture,
                                           final long otherLength)
     {
       if (otherLength == 0) { return this; }
-      final long coPrimeOtherLength = otherLength / gcd(length, otherLength);
-      if (coPrimeOtherLength != otherLength) {
-        System.out.println("WARN ******** GCD != 1 !!!");
+      final long g = gcd(length, otherLength);
+      final long diff =
+        Math.floorMod(Math.floorMod(otherDeparture, otherLength) -
+                      departure, otherLength);
+      if (diff % g != 0) {
+        throw new RuntimeException(this + " never meets departure=" +
+                                   otherDeparture + ", length=" +
+                                   otherLength);
       }
-      final long newLength = length * coPrimeOtherLength;
-      long newDeparture =
-        (((departure - otherDeparture) *
-          modInverse(otherLength, length)) % length) * otherLength +
-        otherDeparture;
-      if (newDeparture < 0) newDeparture += newLength;
-      return new ServiceCycle(newDeparture, newLength);
+      final long m = otherLength / g;
+      final long newLength;
+      try {
+        newLength = Math.multiplyExact(length, m);
+      } catch (final ArithmeticException e) {
+        return null;
+      }
+      final long t = mulMod((diff / g) % m, modInverse((length / g) % m, m), m);
+      return new ServiceCycle(departure + length * t, newLength);
     }
 
     public String toString()
@@ -124,7 +151,65 @@ public class Part2
     }
   }
 
-  private Part2() {}
+  /**
+   * Same as ServiceCycle, but with arbitrary precision, for cycles
+   * whose length does not fit into a long anymore.
+   */
+  private static class BigServiceCycle {
+    public final BigInteger departure; // "a"
+    public final BigInteger length; // "n"
+
+    private BigServiceCycle(final BigInteger departure,
+                            final BigInteger length)
+    {
+      this.departure = departure;
+      this.length = length;
+    }
+
+    private BigServiceCycle(final ServiceCycle cycle)
+    {
+      this(BigInteger.valueOf(cycle.departure),
+           BigInteger.valueOf(cycle.length));
+    }
+
+    /**
+     * See ServiceCycle.chineseIntersect().
+     */
+    private BigServiceCycle chineseIntersect(final long otherDeparture,
+                                             final long otherLength)
+    {
+      if (otherLength == 0) { return this; }
+      final BigInteger n2 = BigInteger.valueOf(otherLength);
+      final BigInteger g = length.gcd(n2);
+      final BigInteger diff =
+        BigInteger.valueOf(otherDeparture).subtract(departure).mod(n2);
+      final BigInteger[] quotientAndRemainder = diff.divideAndRemainder(g);
+      if (quotientAndRemainder[1].signum() != 0) {
+        throw new RuntimeException(this + " never meets departure=" +
+                                   otherDeparture + ", length=" +
+                                   otherLength);
+      }
+      final BigInteger m = n2.divide(g);
+      final BigInteger t =
+        m.equals(BigInteger.ONE) ?
+        BigInteger.ZERO :
+        quotientAndRemainder[0].multiply(length.divide(g).modInverse(m)).mod(m);
+      return new BigServiceCycle(departure.add(length.multiply(t)),
+                                 length.multiply(m));
+    }
+
+    public String toString()
+    {
+      return "BusCycle(departure=" + departure + ", length=" + length + ")";
+    }
+  }
+
+  private final boolean bruteForce;
+
+  private Part2(final boolean bruteForce)
+  {
+    this.bruteForce = bruteForce;
+  }
 
   private void run(final String filePath) throws IOException
   {
@@ -142,6 +227,7 @@ public class Part2
       }
     }
     ServiceCycle cycle = new ServiceCycle(0, services[0]);
+    BigServiceCycle bigCycle = null;
     for (int i = 1; i < services.length; i++) {
       if (services[i] == 0) continue;
       /*
@@ -151,17 +237,33 @@ public class Part2
        * assuming a conjunction at time step t=0, how long it lasted,
        * until at t=0 we got a conjunction.
        */
-      cycle = cycle.bruteForceIntersect(-i, services[i]);
-
-      // FIXME: Even faster, but does not yet fully work:
-      //
-      // cycle = cycle.chineseIntersect(-i, services[i]);
+      if (bruteForce) {
+        cycle = cycle.bruteForceIntersect(-i, services[i]);
+      } else if (bigCycle != null) {
+        bigCycle = bigCycle.chineseIntersect(-i, services[i]);
+      } else {
+        final ServiceCycle newCycle = cycle.chineseIntersect(-i, services[i]);
+        if (newCycle != null) {
+          cycle = newCycle;
+        } else {
+          bigCycle =
+            new BigServiceCycle(cycle).chineseIntersect(-i, services[i]);
+        }
+      }
     }
-    System.out.println(cycle.departure);
+    System.out.println(bigCycle != null ? bigCycle.departure : cycle.departure);
   }
 
   public static void main(final String argv[]) throws IOException
   {
-    new Part2().run("data.txt");
+    boolean bruteForce = false;
+    for (final String arg : argv) {
+      if (arg.equals("--brute-force")) {
+        bruteForce = true;
+      } else {
+        throw new IllegalArgumentException("usage: Part2 [--brute-force]");
+      }
+    }
+    new Part2(bruteForce).run("data.txt");
   }
 }
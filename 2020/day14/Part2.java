@@ -1,76 +1,218 @@
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.math.BigInteger;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 
 public class Part2
 {
-  private final HashMap<Long, Long> memory;
-  private String mask;
+  /**
+   * Addresses have 36 bits only, such that -1 can serve as marker for
+   * empty slots.
+   */
+  private static final long EMPTY_KEY = -1;
 
-  private Part2()
+  /**
+   * Open addressing hash map from addresses to memory values, with
+   * linear probing.
+   */
+  private static class LongLongHashMap
   {
-    memory = new HashMap<Long, Long>();
-  }
+    private long[] keys;
+    private long[] values;
+    private int size;
 
-  private String adr2bits(final long adr)
-  {
-    final StringBuffer bits = new StringBuffer();
-    long mask = 0x800000000L;
-    for (int i = 0; i < 36; i++) {
-      if ((adr & mask) != 0) {
-        bits.append("1");
-      } else {
-        bits.append("0");
+    private LongLongHashMap(final int expectedSize)
+    {
+      keys = new long[Integer.highestOneBit(Math.max(expectedSize, 8) * 2) * 2];
+      values = new long[keys.length];
+      Arrays.fill(keys, EMPTY_KEY);
+    }
+
+    private static int slot(final long key, final int mask)
+    {
+      final long hash = key * 0x9e3779b97f4a7c15L;
+      return (int)(hash >>> 32) & mask;
+    }
+
+    private void put(final long key, final long value)
+    {
+      if (2 * (size + 1) > keys.length) rehash();
+      final int mask = keys.length - 1;
+      int i = slot(key, mask);
+      while (keys[i] != EMPTY_KEY) {
+        if (keys[i] == key) {
+          values[i] = value;
+          return;
+        }
+        i = (i + 1) & mask;
+      }
+      keys[i] = key;
+      values[i] = value;
+      size++;
+    }
+
+    private void rehash()
+    {
+      final long[] oldKeys = keys;
+      final long[] oldValues = values;
+      keys = new long[oldKeys.length * 2];
+      values = new long[keys.length];
+      Arrays.fill(keys, EMPTY_KEY);
+      final int mask = keys.length - 1;
+      for (int j = 0; j < oldKeys.length; j++) {
+        if (oldKeys[j] == EMPTY_KEY) continue;
+        int i = slot(oldKeys[j], mask);
+        while (keys[i] != EMPTY_KEY) i = (i + 1) & mask;
+        keys[i] = oldKeys[j];
+        values[i] = oldValues[j];
       }
-      mask = mask >>> 1;
     }
-    return bits.toString();
+
+    private long sum()
+    {
+      long sum = 0;
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] != EMPTY_KEY) sum += values[i];
+      }
+      return sum;
+    }
   }
 
-  private void executeWriteAccess(final long val, final String floatingAddress,
-                                  final int pos)
+  /**
+   * Memory as list of pairwise disjoint address cubes, each with the
+   * value written to all of its addresses.  A cube is the set of
+   * addresses that match its fixed bits, with its floating bits taking
+   * any value, i.e. exactly the set of addresses of a single masked
+   * write.  A new write shadows the parts of earlier cubes that it
+   * overlaps, which are cut away by cube subtraction, such that the
+   * number of cubes depends on the overlap of writes rather than on
+   * the number of floating bits.
+   */
+  private static class CubeMemory
   {
-    if (pos >= mask.length()) {
-      final long adr = Long.parseLong(floatingAddress, 2);
-      memory.put(adr, val);
-    } else {
-      if (floatingAddress.charAt(pos) == 'X') {
-        final String floatingAddressSubInstance1 =
-          floatingAddress.substring(0, pos) + '0' +
-          floatingAddress.substring(pos + 1);
-        executeWriteAccess(val, floatingAddressSubInstance1, pos + 1);
-        final String floatingAddressSubInstance2 =
-          floatingAddress.substring(0, pos) + '1' +
-          floatingAddress.substring(pos + 1);
-        executeWriteAccess(val, floatingAddressSubInstance2, pos + 1);
-      } else {
-        executeWriteAccess(val, floatingAddress, pos + 1);
+    private long[] bits;
+    private long[] floating;
+    private long[] values;
+    private int size;
+
+    private CubeMemory()
+    {
+      bits = new long[1024];
+      floating = new long[bits.length];
+      values = new long[bits.length];
+    }
+
+    private void add(final long cubeBits, final long cubeFloating,
+                     final long value)
+    {
+      if (size == bits.length) {
+        bits = Arrays.copyOf(bits, 2 * size);
+        floating = Arrays.copyOf(floating, 2 * size);
+        values = Arrays.copyOf(values, 2 * size);
       }
+      bits[size] = cubeBits;
+      floating[size] = cubeFloating;
+      values[size++] = value;
     }
+
+    /**
+     * Replaces each cube c that overlaps the written cube w by the
+     * pieces of c \ w: For each bit that floats in c but is fixed in
+     * w, the half of c with the opposite bit value lies outside of w
+     * and is split off, while the other half is kept for the next bit.
+     * What finally remains lies entirely within w and is dropped.
+     */
+    private void write(final long writeBits, final long writeFloating,
+                       final long value)
+    {
+      final long[] oldBits = bits;
+      final long[] oldFloating = floating;
+      final long[] oldValues = values;
+      final int oldSize = size;
+      bits = new long[oldBits.length];
+      floating = new long[bits.length];
+      values = new long[bits.length];
+      size = 0;
+      for (int i = 0; i < oldSize; i++) {
+        long cubeBits = oldBits[i];
+        long cubeFloating = oldFloating[i];
+        final long fixedInBoth = ~(cubeFloating | writeFloating);
+        if (((cubeBits ^ writeBits) & fixedInBoth) != 0) {
+          add(cubeBits, cubeFloating, oldValues[i]);
+          continue;
+        }
+        long split = cubeFloating & ~writeFloating;
+        while (split != 0) {
+          final long bit = Long.lowestOneBit(split);
+          split &= ~bit;
+          cubeFloating &= ~bit;
+          add((cubeBits & ~bit) | (~writeBits & bit), cubeFloating,
+              oldValues[i]);
+          cubeBits = (cubeBits & ~bit) | (writeBits & bit);
+        }
+      }
+      add(writeBits, writeFloating, value);
+    }
+
+    /**
+     * Since the cubes are disjoint, each contributes its value times
+     * its volume.  With many floating bits, this may exceed a long.
+     */
+    private BigInteger sum()
+    {
+      BigInteger sum = BigInteger.ZERO;
+      for (int i = 0; i < size; i++) {
+        sum = sum.add(BigInteger.valueOf(values[i])
+                      .shiftLeft(Long.bitCount(floating[i])));
+      }
+      return sum;
+    }
+  }
+
+  private final LongLongHashMap memory;
+  private final CubeMemory cubes;
+  private long maskOnes;
+  private long maskFloating;
+
+  private Part2(final boolean enumerate)
+  {
+    memory = enumerate ? new LongLongHashMap(1024) : null;
+    cubes = enumerate ? null : new CubeMemory();
+  }
+
+  private void parseMask(final String mask)
+  {
+    maskOnes = Long.parseLong(mask.replace("X", "0"), 2);
+    maskFloating =
+      Long.parseLong(mask.replace("1", "0").replace("X", "1"), 2);
   }
 
+  /**
+   * The base address together with the floating bits forms the
+   * written cube.  Without cube memory, writes to all addresses of the
+   * cube, i.e. the base address with any subset of the floating bits
+   * set.  The expression (sub -
+   * maskFloating) & maskFloating steps through these subsets like a
+   * counter whose digits are spread over the floating bit positions,
+   * wrapping around to 0 after the last one.
+   */
   private void executeWriteAccess(final String command)
   {
     final String[] tokens = command.substring(4).split(" ");
     final long adr = Long.parseLong(tokens[0].replaceFirst("]", ""));
     final long val = Long.parseLong(tokens[2]);
-    final String adrBits = adr2bits(adr);
-    final StringBuffer floatingAddress = new StringBuffer();
-    for (int i = 0; i < mask.length(); i++) {
-      final char bit = mask.charAt(i);
-      if (bit == 'X') {
-        floatingAddress.append('X');
-      } else if (bit == '0') {
-        floatingAddress.append(adrBits.charAt(i));
-      } else if (bit == '1') {
-        floatingAddress.append('1');
-      } else {
-        throw new RuntimeException("unexpected nit mask character: " + bit);
-      }
+    final long base = (adr | maskOnes) & ~maskFloating;
+    if (cubes != null) {
+      cubes.write(base, maskFloating, val);
+      return;
     }
-    executeWriteAccess(val, floatingAddress.toString(), 0);
+    long sub = 0;
+    do {
+      memory.put(base | sub, val);
+      sub = (sub - maskFloating) & maskFloating;
+    } while (sub != 0);
   }
 
   private void run(final String filePath) throws IOException
@@ -83,23 +225,24 @@ public class Part2
     }
     for (final var instruction : values) {
       if (instruction.startsWith("mask = ")) {
-        mask = instruction.substring(7);
+        parseMask(instruction.substring(7));
       } else {
         executeWriteAccess(instruction);
       }
     }
-    long sum = 0;
-    for (final Long adr : memory.keySet()) {
-      final Long value = memory.get(adr);
-      if (value != null) {
-        sum += value;
-      }
-    }
-    System.out.println(sum);
+    System.out.println(cubes != null ? cubes.sum() : memory.sum());
   }
 
   public static void main(final String argv[]) throws IOException
   {
-    new Part2().run("data.txt");
+    boolean enumerate = false;
+    for (final String arg : argv) {
+      if (arg.equals("--enumerate")) {
+        enumerate = true;
+      } else {
+        throw new IllegalArgumentException("usage: Part2 [--enumerate]");
+      }
+    }
+    new Part2(enumerate).run("data.txt");
   }
 }
@@ -1,33 +1,139 @@
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 
 public class Part2
 {
-  private Part2() {}
+  private static final int DEFAULT_TURNS = 30000000;
+
+  /**
+   * Maximum number of table entries that we allocate on the heap;
+   * larger tables go off-heap.  Must not exceed the maximum Java
+   * array length.
+   */
+  private static final long MAX_HEAP_ENTRIES =
+    Math.min(Integer.MAX_VALUE - 8, Runtime.getRuntime().maxMemory() / 8);
+
+  private final int turns;
+
+  /**
+   * Maps each spoken number to the turn (1-based) when it was most
+   * recently spoken, or 0 if it has not been spoken yet.  Since each
+   * spoken number is either 0 or a difference of two turns, all
+   * numbers are below the total number of turns, such that a dense
+   * table indexed by the number itself suffices.
+   */
+  private interface LastSeenTable
+  {
+    int getAndSet(final int number, final int turn);
+  }
+
+  private static class HeapLastSeenTable implements LastSeenTable
+  {
+    private final int[] lastSeen;
+
+    private HeapLastSeenTable(final int size)
+    {
+      lastSeen = new int[size];
+    }
+
+    public int getAndSet(final int number, final int turn)
+    {
+      final int seen = lastSeen[number];
+      lastSeen[number] = turn;
+      return seen;
+    }
+  }
+
+  /**
+   * Last-seen turns stored in direct buffers outside of the Java
+   * heap, split into chunks since a single buffer is limited to 2 GiB.
+   * Note that the total amount of direct memory is limited by the JVM
+   * option -XX:MaxDirectMemorySize.
+   */
+  private static class OffHeapLastSeenTable implements LastSeenTable
+  {
+    private static final int CHUNK_BITS = 28;
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+    private final IntBuffer[] chunks;
+
+    private OffHeapLastSeenTable(final long size)
+    {
+      chunks = new IntBuffer[(int)((size + CHUNK_MASK) >>> CHUNK_BITS)];
+      for (int i = 0; i < chunks.length; i++) {
+        final long chunkSize = Math.min(size - ((long)i << CHUNK_BITS),
+                                        1L << CHUNK_BITS);
+        chunks[i] = ByteBuffer.allocateDirect((int)chunkSize * 4)
+          .order(ByteOrder.nativeOrder()).asIntBuffer();
+      }
+    }
+
+    public int getAndSet(final int number, final int turn)
+    {
+      final IntBuffer chunk = chunks[number >>> CHUNK_BITS];
+      final int index = number & CHUNK_MASK;
+      final int seen = chunk.get(index);
+      chunk.put(index, turn);
+      return seen;
+    }
+  }
+
+  private Part2(final int turns)
+  {
+    if (turns < 1)
+      throw new IllegalArgumentException("turns must be positive: " + turns);
+    this.turns = turns;
+  }
+
+  private static LastSeenTable createTable(final long size)
+  {
+    return
+      (size <= MAX_HEAP_ENTRIES) ?
+      new HeapLastSeenTable((int)size) :
+      new OffHeapLastSeenTable(size);
+  }
 
   private void run(final String filePath) throws IOException
   {
     final var reader = new BufferedReader(new FileReader(filePath));
-    final var values = new HashMap<Long, Long>();
-    String line = reader.readLine();
-    long pos = 1, prev = -1;
-    for (final var value : line.split(",")) {
-      prev = Long.parseLong(value);
-      values.put(prev, pos++);
-    }
-    long next = pos++ - 1 - values.get(prev);
-    for (; pos <= 30000000; pos++) {
-      values.put(prev, pos - 2);
-      prev = next;
-      next = values.containsKey(prev) ? pos - 1 - values.get(prev) : 0;
-    }
-    System.out.println(next);
+    final String line = reader.readLine();
+    final String[] tokens = line.split(",");
+    final int[] start = new int[tokens.length];
+    int maxStart = 0;
+    for (int i = 0; i < tokens.length; i++) {
+      start[i] = Integer.parseInt(tokens[i].trim());
+      maxStart = Math.max(maxStart, start[i]);
+    }
+    if (turns <= start.length) {
+      System.out.println(start[turns - 1]);
+      return;
+    }
+    final LastSeenTable table =
+      createTable(Math.max((long)turns, (long)maxStart + 1));
+    for (int i = 0; i < start.length - 1; i++) {
+      table.getAndSet(start[i], i + 1);
+    }
+    int current = start[start.length - 1];
+    for (int turn = start.length; turn < turns; turn++) {
+      final int seen = table.getAndSet(current, turn);
+      current = seen == 0 ? 0 : turn - seen;
+    }
+    System.out.println(current);
   }
 
   public static void main(final String argv[]) throws IOException
   {
-    new Part2().run("data.txt");
+    int turns = DEFAULT_TURNS;
+    for (int i = 0; i < argv.length; i++) {
+      if (argv[i].equals("--turns") && (i + 1 < argv.length)) {
+        turns = Integer.parseInt(argv[++i]);
+      } else {
+        throw new IllegalArgumentException("usage: Part2 [--turns N]");
+      }
+    }
+    new Part2(turns).run("data.txt");
   }
 }
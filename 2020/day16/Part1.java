@@ -1,20 +1,30 @@
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 public class Part1
 {
+  /**
+   * Nearby tickets are validated in batches of BATCH_LINES tickets;
+   * a batch task validates slices of up to CHUNK_LINES tickets itself
+   * and forks halves of anything larger.
+   */
+  private static final int BATCH_LINES = 1 << 14;
+  private static final int CHUNK_LINES = 1 << 10;
+
   private final ArrayList<Rule> rules;
-  private final ArrayList<Ticket> tickets;
-  private final ArrayList<Rule> sortedRules;
+  private final ForkJoinPool pool;
+  private RangeIndex index;
 
-  private Part1() {
+  private Part1(final ForkJoinPool pool) {
     rules = new ArrayList<Rule>();
-    tickets = new ArrayList<Ticket>();
-    sortedRules = new ArrayList<Rule>();
+    this.pool = pool;
   }
 
   private static class Rule
@@ -24,9 +34,6 @@ public class Part1
     private final long range1Max;
     private final long range2Min;
     private final long range2Max;
-    private boolean applicableForColumn[];
-    private int applicableForColumns;
-    private boolean selected;
 
     public Rule(final String id,
                 final long range1Min, final long range1Max,
@@ -37,7 +44,6 @@ public class Part1
       this.range1Max = range1Max;
       this.range2Min = range2Min;
       this.range2Max = range2Max;
-      selected = false;
     }
 
     public final boolean satisfiesRangeConstraints(final long value)
@@ -67,28 +73,107 @@ public class Part1
     }
   }
 
-  private class Ticket
+  /**
+   * Splits the value domain at all range boundaries of all rules into
+   * intervals, within each of which the same rules are satisfied.
+   * Adjacent intervals with identical rule masks are merged.  Looking
+   * up a value is then a binary search over the interval starts,
+   * yielding the bitmask of all rules that the value satisfies.
+   */
+  private static class RangeIndex
   {
-    private final long[] values;
+    private final long[] starts;
+    private final long[] masks;
+    private final boolean[] valid;
+    private final int words;
 
-    public Ticket(final String[] values)
+    private RangeIndex(final ArrayList<Rule> rules)
     {
-      this.values = new long[values.length];
-      for (int i = 0; i < values.length; i++) {
-        this.values[i] = Long.parseLong(values[i]);
+      words = (rules.size() + 63) >>> 6;
+      final long[] bounds = new long[4 * rules.size() + 1];
+      int size = 0;
+      bounds[size++] = Long.MIN_VALUE;
+      for (final Rule rule : rules) {
+        bounds[size++] = rule.range1Min;
+        bounds[size++] = rule.range1Max + 1;
+        bounds[size++] = rule.range2Min;
+        bounds[size++] = rule.range2Max + 1;
+      }
+      Arrays.sort(bounds);
+      final long[] starts = new long[bounds.length];
+      final long[] masks = new long[bounds.length * words];
+      int count = 0;
+      for (int i = 0; i < bounds.length; i++) {
+        if ((i > 0) && (bounds[i] == bounds[i - 1])) continue;
+        final int offset = count * words;
+        for (int rule = 0; rule < rules.size(); rule++) {
+          if (rules.get(rule).satisfiesRangeConstraints(bounds[i])) {
+            masks[offset + (rule >>> 6)] |= 1L << rule;
+          }
+        }
+        if ((count > 0) &&
+            Arrays.equals(masks, offset - words, offset,
+                          masks, offset, offset + words)) {
+          Arrays.fill(masks, offset, offset + words, 0);
+          continue;
+        }
+        starts[count++] = bounds[i];
+      }
+      this.starts = Arrays.copyOf(starts, count);
+      this.masks = Arrays.copyOf(masks, count * words);
+      valid = new boolean[count];
+      for (int i = 0; i < count; i++) {
+        for (int word = 0; word < words; word++) {
+          if (masks[i * words + word] != 0) valid[i] = true;
+        }
+      }
+    }
+
+    /**
+     * Returns the index of the interval that contains the value.
+     */
+    private int find(final long value)
+    {
+      int lo = 0, hi = starts.length - 1;
+      while (lo < hi) {
+        final int mid = (lo + hi + 1) >>> 1;
+        if (starts[mid] <= value) lo = mid; else hi = mid - 1;
+      }
+      return lo;
+    }
+
+    private boolean isValid(final long value)
+    {
+      return valid[find(value)];
+    }
+
+    /**
+     * Bitwise ANDs the mask of the rules that the value satisfies into
+     * the given mask.
+     */
+    private void andRuleMask(final long value, final long[] mask)
+    {
+      final int offset = find(value) * words;
+      for (int word = 0; word < words; word++) {
+        mask[word] &= masks[offset + word];
       }
     }
+  }
+
+  private class Ticket
+  {
+    private final long[] values;
 
-    private boolean ruleApplicableForColumn(final Rule rule, final int column)
+    public Ticket(final String[] values)
     {
-      return rule.satisfiesRangeConstraints(values[column]);
+      this.values = parseValues(values);
     }
 
-    private long instantiate()
+    private long instantiate(final int[] ruleOfColumn)
     {
       long product = 1;
       for (int i = 0; i < values.length; i++) {
-        String fieldName = sortedRules.get(i).id;
+        String fieldName = rules.get(ruleOfColumn[i]).id;
         long fieldValue = values[i];
         if (fieldName.startsWith("departure")) {
           product *= fieldValue;
@@ -98,66 +183,41 @@ public class Part1
     }
   }
 
+  private static long[] parseValues(final String[] values)
+  {
+    final long[] longValues = new long[values.length];
+    for (int i = 0; i < values.length; i++) {
+      longValues[i] = Long.parseLong(values[i]);
+    }
+    return longValues;
+  }
+
   private boolean isValidForSomeRule(final long value)
   {
     if (value < 0) throw new RuntimeException();
-    for (final Rule rule : rules) {
-      if (rule.satisfiesRangeConstraints(value)) return true;
-    }
-    return false;
+    return index.isValid(value);
   }
 
-  private long getTicketScanningErrorRate(final String[] values)
+  private long getTicketScanningErrorRate(final long[] values)
   {
     long sum = 0;
     boolean isValid = true;
-    for (final String value : values) {
-      final long longValue = Long.parseLong(value);
-      if (!isValidForSomeRule(longValue)) {
-        sum += longValue;
+    for (final long value : values) {
+      if (!isValidForSomeRule(value)) {
+        sum += value;
         isValid = false;
       }
     }
     return isValid ? -1 : sum;
   }
 
-  private boolean ruleApplicableForAllTicketsForColumn(final Rule rule,
-                                                       final int column)
-  {
-    if (rule.applicableForColumn != null) {
-      return rule.applicableForColumn[column];
-    }
-    for (final Ticket ticket : tickets) {
-      if (!ticket.ruleApplicableForColumn(rule, column)) {
-        return false;
-      }
-    }
-    return true;
-  }
-
-  private boolean determineRules(final int startColumn)
-  {
-    if (startColumn >= rules.size()) return true;
-    for (final Rule rule : rules) {
-      if (rule.selected) continue;
-      if (ruleApplicableForAllTicketsForColumn(rule, startColumn)) {
-        sortedRules.add(rule);
-        rule.selected = true;
-        if (determineRules(startColumn + 1))
-          return true;
-        rule.selected = false;
-        sortedRules.remove(sortedRules.size() - 1);
-      }
-    }
-    return false;
-  }
-
   private void parseRules(final BufferedReader reader) throws IOException
   {
     String line;
     while (!(line = reader.readLine()).isEmpty()) {
       rules.add(Rule.parse(line));
     }
+    index = new RangeIndex(rules);
   }
 
   private Ticket parseYourTicket(final BufferedReader reader) throws IOException
@@ -168,57 +228,277 @@ public class Part1
     return ticket;
   }
 
-  private void parseNearbyTickets(final BufferedReader reader)
-    throws IOException
+  /**
+   * Validation result for a range of nearby tickets: the sum of all
+   * invalid values, and for each column the bitmask of rules that the
+   * values of all valid tickets in that column satisfy.  Partial
+   * results of disjoint ranges merge by adding the sums and ANDing the
+   * masks.
+   */
+  private class Validation
   {
-    reader.readLine();
-    long sum = 0;
-    String line;
-    while ((line = reader.readLine()) != null) {
-      final String[] values = line.split(",");
+    private long errorRate;
+    private final long[][] candidates;
+
+    private Validation()
+    {
+      final int words = (rules.size() + 63) >>> 6;
+      candidates = new long[rules.size()][words];
+      for (final long[] mask : candidates) {
+        for (int i = 0; i < rules.size(); i++) mask[i >>> 6] |= 1L << i;
+      }
+    }
+
+    private void add(final String line)
+    {
+      final long[] values = parseValues(line.split(","));
       final long singleSum = getTicketScanningErrorRate(values);
-      if (singleSum == -1) {
-        tickets.add(new Ticket(values));
-      } else {
-        sum += singleSum;
+      if (singleSum != -1) {
+        errorRate += singleSum;
+        return;
+      }
+      if (values.length != candidates.length) {
+        throw new RuntimeException("number of ticket values does not " +
+                                   "match number of rules");
+      }
+      for (int column = 0; column < candidates.length; column++) {
+        index.andRuleMask(values[column], candidates[column]);
+      }
+    }
+
+    private void merge(final Validation other)
+    {
+      errorRate += other.errorRate;
+      for (int column = 0; column < candidates.length; column++) {
+        for (int word = 0; word < candidates[column].length; word++) {
+          candidates[column][word] &= other.candidates[column][word];
+        }
       }
     }
-    System.out.println(sum);
   }
 
-  private void computeWhichRulesApplyOnWhatColumns()
+  private class ValidationTask extends RecursiveTask<Validation>
   {
-    for (final Rule rule : rules) {
-      final boolean[] applicableForColumn = new boolean[rules.size()];
-      int count = 0;
-      for (int column = 0; column < rules.size(); column++) {
-        if (applicableForColumn[column] =
-            ruleApplicableForAllTicketsForColumn(rule, column)) {
-          count++;
-        }
+    private static final long serialVersionUID = 1L;
+
+    private final String[] lines;
+    private final int from;
+    private final int to;
+
+    private ValidationTask(final String[] lines, final int from, final int to)
+    {
+      this.lines = lines;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected Validation compute()
+    {
+      if (to - from <= CHUNK_LINES) {
+        final Validation validation = new Validation();
+        for (int i = from; i < to; i++) validation.add(lines[i]);
+        return validation;
       }
-      rule.applicableForColumn = applicableForColumn;
-      rule.applicableForColumns = count;
+      final int mid = (from + to) >>> 1;
+      final ValidationTask left = new ValidationTask(lines, from, mid);
+      left.fork();
+      final Validation validation =
+        new ValidationTask(lines, mid, to).compute();
+      validation.merge(left.join());
+      return validation;
+    }
+  }
+
+  /**
+   * Validates the nearby tickets on the pool while the reader keeps
+   * going, and merges the error rates and rule candidates of the
+   * batches in submission order.  Reading pauses on the oldest batch
+   * once twice the pool's parallelism is queued, so only a few
+   * batches of tickets are held at a time.  Returns the rule
+   * candidates per column.
+   */
+  private long[][] parseNearbyTickets(final BufferedReader reader)
+    throws IOException
+  {
+    reader.readLine();
+    final Validation result = new Validation();
+    final ArrayDeque<ForkJoinTask<Validation>> pending =
+      new ArrayDeque<ForkJoinTask<Validation>>();
+    final int maxPending = 2 * pool.getParallelism();
+    String[] batch = new String[BATCH_LINES];
+    int size = 0;
+    String line;
+    while ((line = reader.readLine()) != null) {
+      batch[size++] = line;
+      if (size < BATCH_LINES) continue;
+      pending.add(pool.submit(new ValidationTask(batch, 0, size)));
+      if (pending.size() > maxPending) result.merge(pending.poll().join());
+      batch = new String[BATCH_LINES];
+      size = 0;
     }
+    if (size > 0) pending.add(pool.submit(new ValidationTask(batch, 0, size)));
+    while (!pending.isEmpty()) result.merge(pending.poll().join());
+    System.out.println(result.errorRate);
+    return result.candidates;
   }
 
   /**
-   * Performance optimization: Rearrange order of rules such that in
-   * the resulting search tree for a depth first search, the top level
-   * nodes have smallest degree, while the bottom level nodes have
-   * highest degree.
-   *
-   * At least for my input data, this approach reduces runtime costs
-   * on my machine from roughly 290s to less than roughly 25ms, that is
-   * by a factor of more than 10000.
+   * Assigns each column a rule out of its candidates, such that no
+   * two columns share a rule.  Most inputs are fully resolved by
+   * propagating naked singles: A column with a single candidate left
+   * takes that rule, which is then removed from the candidates of all
+   * other columns, possibly leaving further columns with a single
+   * candidate.  Only if columns with multiple candidates remain, the
+   * assignment is completed by a maximum bipartite matching between
+   * the remaining columns and rules (Hopcroft-Karp), such that
+   * runtime stays polynomial in the number of fields either way.
    */
-  private void sortRules()
+  private static class FieldResolver
   {
-    Collections.sort(rules, (lhs, rhs) -> {
-        return
-          lhs.applicableForColumns > rhs.applicableForColumns ? 1 :
-          (lhs.applicableForColumns < rhs.applicableForColumns ? -1 : 0);
-      });
+    private static final int INFINITY = Integer.MAX_VALUE;
+
+    private final long[][] candidates;
+    private final int[] ruleOfColumn;
+    private final int[] columnOfRule;
+    private final int[] dist;
+
+    private FieldResolver(final long[][] candidates)
+    {
+      this.candidates = candidates;
+      ruleOfColumn = new int[candidates.length];
+      columnOfRule = new int[candidates.length];
+      dist = new int[candidates.length];
+      Arrays.fill(ruleOfColumn, -1);
+      Arrays.fill(columnOfRule, -1);
+    }
+
+    private static int count(final long[] mask)
+    {
+      int count = 0;
+      for (final long word : mask) count += Long.bitCount(word);
+      return count;
+    }
+
+    private static int first(final long[] mask)
+    {
+      for (int word = 0; word < mask.length; word++) {
+        if (mask[word] != 0) {
+          return (word << 6) + Long.numberOfTrailingZeros(mask[word]);
+        }
+      }
+      return -1;
+    }
+
+    private boolean propagateNakedSingles()
+    {
+      final int columns = candidates.length;
+      final int[] counts = new int[columns];
+      final ArrayList<Integer> singles = new ArrayList<Integer>();
+      for (int column = 0; column < columns; column++) {
+        counts[column] = count(candidates[column]);
+        if (counts[column] == 0) return false;
+        if (counts[column] == 1) singles.add(column);
+      }
+      while (!singles.isEmpty()) {
+        final int column = singles.remove(singles.size() - 1);
+        final int rule = first(candidates[column]);
+        ruleOfColumn[column] = rule;
+        columnOfRule[rule] = column;
+        final int word = rule >>> 6;
+        final long bit = 1L << rule;
+        for (int other = 0; other < columns; other++) {
+          if ((other == column) || ((candidates[other][word] & bit) == 0))
+            continue;
+          candidates[other][word] &= ~bit;
+          if (--counts[other] == 0) return false;
+          if (counts[other] == 1) singles.add(other);
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Builds the layers of shortest alternating paths starting from
+     * all unmatched columns.  Returns true if any such path ends in an
+     * unmatched rule, i.e. if the matching can still be augmented.
+     */
+    private boolean layer()
+    {
+      final int columns = candidates.length;
+      final int[] queue = new int[columns];
+      int head = 0, tail = 0;
+      for (int column = 0; column < columns; column++) {
+        if (ruleOfColumn[column] == -1) {
+          dist[column] = 0;
+          queue[tail++] = column;
+        } else {
+          dist[column] = INFINITY;
+        }
+      }
+      boolean augmentable = false;
+      while (head < tail) {
+        final int column = queue[head++];
+        final long[] mask = candidates[column];
+        for (int word = 0; word < mask.length; word++) {
+          for (long bits = mask[word]; bits != 0; bits &= bits - 1) {
+            final int rule = (word << 6) + Long.numberOfTrailingZeros(bits);
+            final int next = columnOfRule[rule];
+            if (next == -1) {
+              augmentable = true;
+            } else if (dist[next] == INFINITY) {
+              dist[next] = dist[column] + 1;
+              queue[tail++] = next;
+            }
+          }
+        }
+      }
+      return augmentable;
+    }
+
+    private boolean augment(final int column)
+    {
+      final long[] mask = candidates[column];
+      for (int word = 0; word < mask.length; word++) {
+        for (long bits = mask[word]; bits != 0; bits &= bits - 1) {
+          final int rule = (word << 6) + Long.numberOfTrailingZeros(bits);
+          final int next = columnOfRule[rule];
+          if ((next == -1) ||
+              ((dist[next] == dist[column] + 1) && augment(next))) {
+            ruleOfColumn[column] = rule;
+            columnOfRule[rule] = column;
+            return true;
+          }
+        }
+      }
+      dist[column] = INFINITY;
+      return false;
+    }
+
+    private boolean match()
+    {
+      final int columns = candidates.length;
+      int unmatched = 0;
+      for (int column = 0; column < columns; column++) {
+        if (ruleOfColumn[column] == -1) unmatched++;
+      }
+      while ((unmatched > 0) && layer()) {
+        for (int column = 0; column < columns; column++) {
+          if ((ruleOfColumn[column] == -1) && augment(column)) unmatched--;
+        }
+      }
+      return unmatched == 0;
+    }
+
+    /**
+     * Returns for each column the index of its rule, or null if there
+     * is no valid assignment.
+     */
+    private int[] resolve()
+    {
+      if (!propagateNakedSingles()) return null;
+      return match() ? ruleOfColumn : null;
+    }
   }
 
   private void run(final String filePath) throws IOException
@@ -226,11 +506,10 @@ public class Part1
     final var reader = new BufferedReader(new FileReader(filePath));
     parseRules(reader);
     final Ticket yourTicket = parseYourTicket(reader);
-    parseNearbyTickets(reader);
-    computeWhichRulesApplyOnWhatColumns();
-    sortRules();
-    if (determineRules(0)) {
-      System.out.println(yourTicket.instantiate());
+    final long[][] candidates = parseNearbyTickets(reader);
+    final int[] ruleOfColumn = new FieldResolver(candidates).resolve();
+    if (ruleOfColumn != null) {
+      System.out.println(yourTicket.instantiate(ruleOfColumn));
     } else {
       System.out.println("no solution found");
     }
@@ -238,6 +517,14 @@ public class Part1
 
   public static void main(final String argv[]) throws IOException
   {
-    new Part1().run("data.txt");
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+    for (int i = 0; i < argv.length; i++) {
+      if (argv[i].equals("--threads") && (i + 1 < argv.length)) {
+        pool = new ForkJoinPool(Integer.parseInt(argv[++i]));
+      } else {
+        throw new IllegalArgumentException("usage: Part1 [--threads N]");
+      }
+    }
+    new Part1(pool).run("data.txt");
   }
 }
@@ -6,7 +6,20 @@ import java.util.HashSet;
 
 public class Part2
 {
-  private Part2() {}
+  private static final int DEFAULT_CYCLES = 6;
+  private static final int DIMENSIONS = 4;
+
+  private final int cycles;
+  private final boolean dense;
+
+  private Part2(final int cycles, final boolean dense)
+  {
+    if (cycles < 0)
+      throw new IllegalArgumentException("cycles must not be negative: " +
+                                         cycles);
+    this.cycles = cycles;
+    this.dense = dense;
+  }
 
   private char[][][][] createCube(final int d)
   {
@@ -133,9 +146,16 @@ public class Part2
     return cube;
   }
 
+  /**
+   * Unless the dense grid is requested, the simulation is left to the
+   * sparse engine of Solution, with four dimensions.
+   */
   private void run(final String filePath) throws IOException
   {
-    final int cycles = 6;
+    if (!dense) {
+      new Solution(DIMENSIONS, cycles, true).run(filePath);
+      return;
+    }
     char[][][][] cube1 = loadInitialConfiguration(filePath, cycles);
     final int d = cube1.length;
     char[][][][] cube2 = createCube(cube1.length);
@@ -150,6 +170,18 @@ public class Part2
 
   public static void main(final String argv[]) throws IOException
   {
-    new Part2().run("data.txt");
+    int cycles = DEFAULT_CYCLES;
+    boolean dense = false;
+    for (int i = 0; i < argv.length; i++) {
+      if (argv[i].equals("--cycles") && (i + 1 < argv.length)) {
+        cycles = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("--dense")) {
+        dense = true;
+      } else {
+        throw new IllegalArgumentException("usage: Part2 [--cycles N] " +
+                                           "[--dense]");
+      }
+    }
+    new Part2(cycles, dense).run("data.txt");
   }
 }
@@ -0,0 +1,328 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Conway cubes for an arbitrary number of dimensions.  The seed is
+ * two-dimensional, and all further dimensions start at coordinate 0.
+ * Since the rules are symmetric, the whole pocket dimension then
+ * stays mirror symmetric with respect to each of these extra
+ * coordinates, such that it suffices to simulate the orthant where
+ * all extra coordinates are non-negative.
+ */
+public class Solution
+{
+  private static final int DEFAULT_DIMENSIONS = 3;
+  private static final int DEFAULT_CYCLES = 6;
+  private static final int MIN_DIMENSIONS = 2;
+  private static final int MAX_DIMENSIONS = 10;
+  private static final int SEED_DIMENSIONS = 2;
+  private static final long EMPTY_KEY = -1;
+
+  private final int dimensions;
+  private final int cycles;
+  private final boolean folded;
+
+  /**
+   * Each coordinate of a cube is stored as a biased unsigned field
+   * of a single long value; the field width depends on the number of
+   * dimensions and is 32 bits for two dimensions, hence the long
+   * bias.  Since packing is linear, the packed coordinates of
+   * a neighbour are obtained by just adding a packed offset, as long
+   * as no field over- or underflows.
+   */
+  private final int coordinateBits;
+  private final long coordinateBias;
+  private final long coordinateMask;
+
+  /**
+   * All 3^d - 1 neighbour offsets, both as per-dimension deltas and
+   * in packed form.
+   */
+  private final int[][] deltas;
+  private final long[] packedOffsets;
+
+  /**
+   * Open addressing hash set of packed coordinates.  All bits set
+   * would require the maximum coordinate in each dimension, which is
+   * out of range, such that -1 can serve as marker for empty slots.
+   */
+  private static class LongHashSet
+  {
+    private long[] keys;
+    private int size;
+
+    private LongHashSet(final int expectedSize)
+    {
+      keys = new long[tableSize(expectedSize)];
+      Arrays.fill(keys, EMPTY_KEY);
+    }
+
+    private static int tableSize(final int expectedSize)
+    {
+      return Integer.highestOneBit(Math.max(expectedSize, 8) * 2) * 2;
+    }
+
+    private static int slot(final long key, final int mask)
+    {
+      final long hash = key * 0x9e3779b97f4a7c15L;
+      return (int)(hash >>> 32) & mask;
+    }
+
+    private boolean contains(final long key)
+    {
+      final int mask = keys.length - 1;
+      for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+        if (keys[i] == key) return true;
+        if (keys[i] == EMPTY_KEY) return false;
+      }
+    }
+
+    private void add(final long key)
+    {
+      if (2 * (size + 1) > keys.length) rehash();
+      final int mask = keys.length - 1;
+      int i = slot(key, mask);
+      while (keys[i] != EMPTY_KEY) {
+        if (keys[i] == key) return;
+        i = (i + 1) & mask;
+      }
+      keys[i] = key;
+      size++;
+    }
+
+    private void rehash()
+    {
+      final long[] oldKeys = keys;
+      keys = new long[oldKeys.length * 2];
+      Arrays.fill(keys, EMPTY_KEY);
+      size = 0;
+      for (final long key : oldKeys) {
+        if (key != EMPTY_KEY) add(key);
+      }
+    }
+  }
+
+  /**
+   * Open addressing hash map from packed coordinates to the number
+   * of active neighbours.
+   */
+  private static class LongIntHashMap
+  {
+    private long[] keys;
+    private int[] values;
+    private int size;
+
+    private LongIntHashMap(final int expectedSize)
+    {
+      keys = new long[LongHashSet.tableSize(expectedSize)];
+      values = new int[keys.length];
+      Arrays.fill(keys, EMPTY_KEY);
+    }
+
+    private void add(final long key, final int amount)
+    {
+      if (2 * (size + 1) > keys.length) rehash();
+      final int mask = keys.length - 1;
+      int i = LongHashSet.slot(key, mask);
+      while (keys[i] != EMPTY_KEY) {
+        if (keys[i] == key) {
+          values[i] += amount;
+          return;
+        }
+        i = (i + 1) & mask;
+      }
+      keys[i] = key;
+      values[i] = amount;
+      size++;
+    }
+
+    private void rehash()
+    {
+      final long[] oldKeys = keys;
+      final int[] oldValues = values;
+      keys = new long[oldKeys.length * 2];
+      values = new int[keys.length];
+      Arrays.fill(keys, EMPTY_KEY);
+      final int mask = keys.length - 1;
+      for (int j = 0; j < oldKeys.length; j++) {
+        if (oldKeys[j] == EMPTY_KEY) continue;
+        int i = LongHashSet.slot(oldKeys[j], mask);
+        while (keys[i] != EMPTY_KEY) i = (i + 1) & mask;
+        keys[i] = oldKeys[j];
+        values[i] = oldValues[j];
+      }
+    }
+  }
+
+  Solution(final int dimensions, final int cycles,
+           final boolean folded)
+  {
+    if ((dimensions < MIN_DIMENSIONS) || (dimensions > MAX_DIMENSIONS))
+      throw new IllegalArgumentException("dimensions must be in range " +
+                                         MIN_DIMENSIONS + ".." +
+                                         MAX_DIMENSIONS + ": " + dimensions);
+    if (cycles < 0)
+      throw new IllegalArgumentException("cycles must not be negative: " +
+                                         cycles);
+    this.dimensions = dimensions;
+    this.cycles = cycles;
+    this.folded = folded;
+    coordinateBits = 64 / dimensions;
+    coordinateBias = 1L << (coordinateBits - 1);
+    coordinateMask = (1L << coordinateBits) - 1;
+    final int count = (int)Math.pow(3, dimensions) - 1;
+    deltas = new int[count][];
+    packedOffsets = new long[count];
+    int n = 0;
+    for (int i = 0; i <= count; i++) {
+      final int[] delta = new int[dimensions];
+      long offset = 0;
+      int digits = i;
+      for (int dim = 0; dim < dimensions; dim++) {
+        delta[dim] = digits % 3 - 1;
+        offset += (long)delta[dim] << (dim * coordinateBits);
+        digits /= 3;
+      }
+      if (offset == 0) continue;
+      deltas[n] = delta;
+      packedOffsets[n++] = offset;
+    }
+  }
+
+  private long pack(final int[] coordinates)
+  {
+    long packed = 0;
+    for (int dim = dimensions - 1; dim >= 0; dim--) {
+      packed <<= coordinateBits;
+      packed |= coordinates[dim] + coordinateBias;
+    }
+    return packed;
+  }
+
+  private void unpack(final long packed, final int[] coordinates)
+  {
+    for (int dim = 0; dim < dimensions; dim++) {
+      coordinates[dim] =
+        (int)(((packed >>> (dim * coordinateBits)) & coordinateMask) -
+              coordinateBias);
+    }
+  }
+
+  /**
+   * Scatters the contribution of each active cube to the neighbour
+   * counts of its neighbours.  When folded, only neighbours inside
+   * the orthant are counted.  A cube with extra coordinate 1 then
+   * also stands for its mirror image at -1, which is a neighbour of
+   * the cube at 0 as well, such that it counts twice there.
+   */
+  private LongHashSet update(final LongHashSet active)
+  {
+    final LongIntHashMap neighbourCounts = new LongIntHashMap(active.size);
+    final int[] coordinates = new int[dimensions];
+    for (final long key : active.keys) {
+      if (key == EMPTY_KEY) continue;
+      unpack(key, coordinates);
+      nextNeighbour:
+      for (int i = 0; i < packedOffsets.length; i++) {
+        int weight = 1;
+        if (folded) {
+          final int[] delta = deltas[i];
+          for (int dim = SEED_DIMENSIONS; dim < dimensions; dim++) {
+            final int target = coordinates[dim] + delta[dim];
+            if (target < 0) continue nextNeighbour;
+            if ((target == 0) && (coordinates[dim] == 1)) weight *= 2;
+          }
+        }
+        neighbourCounts.add(key + packedOffsets[i], weight);
+      }
+    }
+    final LongHashSet nextActive = new LongHashSet(active.size);
+    for (int i = 0; i < neighbourCounts.keys.length; i++) {
+      final long key = neighbourCounts.keys[i];
+      if (key == EMPTY_KEY) continue;
+      final int activeNeighbours = neighbourCounts.values[i];
+      if ((activeNeighbours == 3) ||
+          ((activeNeighbours == 2) && active.contains(key))) {
+        nextActive.add(key);
+      }
+    }
+    return nextActive;
+  }
+
+  /**
+   * Returns the number of active cubes, where in the folded case
+   * each cube stands for all of its mirror images.
+   */
+  private long countActive(final LongHashSet active)
+  {
+    final int[] coordinates = new int[dimensions];
+    long count = 0;
+    for (final long key : active.keys) {
+      if (key == EMPTY_KEY) continue;
+      if (!folded) {
+        count++;
+        continue;
+      }
+      unpack(key, coordinates);
+      long images = 1;
+      for (int dim = SEED_DIMENSIONS; dim < dimensions; dim++) {
+        if (coordinates[dim] != 0) images *= 2;
+      }
+      count += images;
+    }
+    return count;
+  }
+
+  void run(final String filePath) throws IOException
+  {
+    final var reader = new BufferedReader(new FileReader(filePath));
+    final var values = new ArrayList<String>();
+    String line;
+    while ((line = reader.readLine()) != null) {
+      values.add(line);
+    }
+    final int extent = Math.max(values.size(), values.get(0).length());
+    if ((long)extent + cycles + 1 >= coordinateBias)
+      throw new RuntimeException("too many cycles for " + dimensions +
+                                 " dimensions: " + cycles);
+    LongHashSet active = new LongHashSet(64);
+    final int[] coordinates = new int[dimensions];
+    for (int y = 0; y < values.size(); y++) {
+      final String value = values.get(y);
+      for (int x = 0; x < value.length(); x++) {
+        if (value.charAt(x) != '#') continue;
+        coordinates[0] = x;
+        coordinates[1] = y;
+        active.add(pack(coordinates));
+      }
+    }
+    for (int cycle = 0; cycle < cycles; cycle++) {
+      active = update(active);
+    }
+    System.out.println(countActive(active));
+  }
+
+  public static void main(final String argv[]) throws IOException
+  {
+    int dimensions = DEFAULT_DIMENSIONS;
+    int cycles = DEFAULT_CYCLES;
+    boolean folded = true;
+    for (int i = 0; i < argv.length; i++) {
+      if (argv[i].equals("--dimensions") && (i + 1 < argv.length)) {
+        dimensions = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("--cycles") && (i + 1 < argv.length)) {
+        cycles = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("--unfolded")) {
+        folded = false;
+      } else {
+        throw new IllegalArgumentException("usage: Solution " +
+                                           "[--dimensions N] " +
+                                           "[--cycles N] [--unfolded]");
+      }
+    }
+    new Solution(dimensions, cycles, folded).run("data.txt");
+  }
+}
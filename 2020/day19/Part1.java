@@ -1,40 +1,57 @@
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
 
 public class Part1
 {
   private static final boolean DEBUG = false;
+
   private final Log log;
   private final HashMap<Integer, Rule> id2rule;
-
+  private final boolean recursive;
+  private final ForkJoinPool pool;
+  private Dfa dfa;
+
+  /**
+   * Indentation is kept per thread, such that messages can be matched
+   * concurrently.
+   */
   private static class Log
   {
     static final String indentPattern = ".+*";
-    int indent;
-    String indentStr = "";
+    private final ThreadLocal<String> indentStr =
+      ThreadLocal.withInitial(() -> "");
 
     public void indent()
     {
-      indent++;
-      indentStr = indentStr +
-        indentPattern.charAt(indent % indentPattern.length()) + " ";
+      if (!DEBUG) return;
+      final String str = indentStr.get();
+      final int indent = (str.length() / 2 + 1) % indentPattern.length();
+      indentStr.set(str + indentPattern.charAt(indent) + " ");
     }
 
     public void unindent()
     {
-      if (indent == 0)
+      if (!DEBUG) return;
+      final String str = indentStr.get();
+      if (str.isEmpty())
         throw new RuntimeException("nothing left for unindent");
-      indent--;
-      indentStr = indentStr.substring(0, indentStr.length() - 2);
+      indentStr.set(str.substring(0, str.length() - 2));
     }
 
     public void log(String message)
     {
-      if (DEBUG) System.out.println(indentStr + message);
+      if (DEBUG) System.out.println(indentStr.get() + message);
     }
   }
 
@@ -252,10 +269,265 @@ public class Part1
     }
   }
 
-  private Part1()
+  /**
+   * Minimized deterministic finite automaton, with transitions stored
+   * in a flat table indexed by state and alphabet symbol.  State 0 is
+   * the start state, and -1 denotes the dead state.
+   */
+  private static class Dfa
+  {
+    private final int[] symbolOf;
+    private final int alphabetSize;
+    private final int[] next;
+    private final boolean[] accepting;
+
+    private Dfa(final int[] symbolOf, final int alphabetSize,
+                final int[] next, final boolean[] accepting)
+    {
+      this.symbolOf = symbolOf;
+      this.alphabetSize = alphabetSize;
+      this.next = next;
+      this.accepting = accepting;
+    }
+
+    private int size()
+    {
+      return accepting.length;
+    }
+
+    private boolean accept(final String message)
+    {
+      int state = 0;
+      for (int i = 0; i < message.length(); i++) {
+        final char c = message.charAt(i);
+        if (c >= symbolOf.length) return false;
+        final int symbol = symbolOf[c];
+        if (symbol < 0) return false;
+        state = next[state * alphabetSize + symbol];
+        if (state < 0) return false;
+      }
+      return accepting[state];
+    }
+  }
+
+  /**
+   * Compiles the language of a rule into a DFA, provided that the rule
+   * does not directly or indirectly refer to itself, such that its
+   * language is finite.
+   *
+   * A continuation is the sequence of rules that remain to be matched,
+   * interned as cons cells, with 0 denoting the empty continuation.  A
+   * DFA state is the set of all continuations that are possible after
+   * the input read so far, where leading expansion rules are always
+   * expanded, such that each continuation starts with a terminal rule
+   * or is empty.  Since the language is finite, so is the number of
+   * such sets.  The resulting DFA is minimized by partition
+   * refinement.  If the number of states exceeds MAX_STATES, compile()
+   * gives up and returns null.
+   */
+  private static class DfaCompiler
+  {
+    private static final int MAX_STATES = 1 << 16;
+
+    private final HashMap<Long, Integer> cells;
+    private final ArrayList<Rule> heads;
+    private final ArrayList<Integer> tails;
+    private final HashMap<Integer, int[]> closures;
+    private final int[] symbolOf;
+    private int alphabetSize;
+
+    private DfaCompiler()
+    {
+      cells = new HashMap<Long, Integer>();
+      heads = new ArrayList<Rule>();
+      tails = new ArrayList<Integer>();
+      closures = new HashMap<Integer, int[]>();
+      heads.add(null);
+      tails.add(0);
+      symbolOf = new int[256];
+      Arrays.fill(symbolOf, -1);
+    }
+
+    private static boolean isFinite(final Rule rule,
+                                    final HashSet<Rule> onPath,
+                                    final HashSet<Rule> finite)
+    {
+      if (finite.contains(rule)) return true;
+      if (!onPath.add(rule)) return false;
+      if (rule instanceof ExpansionRule) {
+        for (final Expansion expansion : ((ExpansionRule)rule).expansions) {
+          for (final Rule child : expansion.rules) {
+            if (!isFinite(child, onPath, finite)) return false;
+          }
+        }
+      }
+      onPath.remove(rule);
+      finite.add(rule);
+      return true;
+    }
+
+    private int cons(final Rule head, final int tail)
+    {
+      final long key = ((long)head.id << 32) | tail;
+      final Integer cell = cells.get(key);
+      if (cell != null) return cell;
+      final int newCell = heads.size();
+      heads.add(head);
+      tails.add(tail);
+      cells.put(key, newCell);
+      return newCell;
+    }
+
+    /**
+     * All continuations that result from the given one by expanding
+     * leading expansion rules.
+     */
+    private int[] closure(final int continuation)
+    {
+      final int[] known = closures.get(continuation);
+      if (known != null) return known;
+      final Rule head = heads.get(continuation);
+      final int[] result;
+      if ((head == null) || (head instanceof TerminalRule)) {
+        result = new int[] { continuation };
+      } else {
+        final HashSet<Integer> expanded = new HashSet<Integer>();
+        final int tail = tails.get(continuation);
+        for (final Expansion expansion : ((ExpansionRule)head).expansions) {
+          int expandedContinuation = tail;
+          for (int i = expansion.rules.size() - 1; i >= 0; i--) {
+            expandedContinuation =
+              cons(expansion.rules.get(i), expandedContinuation);
+          }
+          for (final int c : closure(expandedContinuation)) expanded.add(c);
+        }
+        result = expanded.stream().mapToInt(Integer::intValue).toArray();
+      }
+      closures.put(continuation, result);
+      return result;
+    }
+
+    private static int[] toState(final HashSet<Integer> continuations)
+    {
+      final int[] state =
+        continuations.stream().mapToInt(Integer::intValue).toArray();
+      Arrays.sort(state);
+      return state;
+    }
+
+    private Dfa compile(final Rule start)
+    {
+      if (!isFinite(start, new HashSet<Rule>(), new HashSet<Rule>())) {
+        return null;
+      }
+      final HashSet<Integer> startContinuations = new HashSet<Integer>();
+      for (final int c : closure(cons(start, 0))) startContinuations.add(c);
+      final ArrayList<int[]> states = new ArrayList<int[]>();
+      final HashMap<String, Integer> state2index =
+        new HashMap<String, Integer>();
+      states.add(toState(startContinuations));
+      state2index.put(Arrays.toString(states.get(0)), 0);
+      final ArrayList<int[]> transitions = new ArrayList<int[]>();
+      for (int index = 0; index < states.size(); index++) {
+        final HashMap<Character, HashSet<Integer>> successors =
+          new HashMap<Character, HashSet<Integer>>();
+        for (final int continuation : states.get(index)) {
+          final Rule head = heads.get(continuation);
+          if (head == null) continue;
+          final char terminal = ((TerminalRule)head).terminal;
+          if (symbolOf[terminal] < 0) symbolOf[terminal] = alphabetSize++;
+          final HashSet<Integer> successor =
+            successors.computeIfAbsent(terminal, t -> new HashSet<Integer>());
+          for (final int c : closure(tails.get(continuation))) {
+            successor.add(c);
+          }
+        }
+        final int[] transition = new int[symbolOf.length];
+        Arrays.fill(transition, -1);
+        for (final var entry : successors.entrySet()) {
+          final int[] state = toState(entry.getValue());
+          final String key = Arrays.toString(state);
+          Integer target = state2index.get(key);
+          if (target == null) {
+            if (states.size() == MAX_STATES) return null;
+            target = states.size();
+            states.add(state);
+            state2index.put(key, target);
+          }
+          transition[entry.getKey()] = target;
+        }
+        transitions.add(transition);
+      }
+      final boolean[] accepting = new boolean[states.size()];
+      for (int index = 0; index < states.size(); index++) {
+        accepting[index] = states.get(index)[0] == 0;
+      }
+      final int[] next = new int[states.size() * alphabetSize];
+      for (int index = 0; index < states.size(); index++) {
+        for (int c = 0; c < symbolOf.length; c++) {
+          if (symbolOf[c] >= 0) {
+            next[index * alphabetSize + symbolOf[c]] =
+              transitions.get(index)[c];
+          }
+        }
+      }
+      return minimize(next, accepting);
+    }
+
+    /**
+     * Moore's partition refinement: States start out partitioned into
+     * accepting and non-accepting ones, and each round splits classes
+     * by the classes of their successors, until nothing changes.
+     */
+    private Dfa minimize(final int[] next, final boolean[] accepting)
+    {
+      final int n = accepting.length;
+      int[] classOf = new int[n];
+      for (int s = 0; s < n; s++) classOf[s] = accepting[s] ? 1 : 0;
+      int classes = 0;
+      while (true) {
+        final HashMap<String, Integer> signature2class =
+          new HashMap<String, Integer>();
+        final int[] newClassOf = new int[n];
+        final int[] signature = new int[alphabetSize + 1];
+        for (int s = 0; s < n; s++) {
+          signature[0] = classOf[s];
+          for (int a = 0; a < alphabetSize; a++) {
+            final int target = next[s * alphabetSize + a];
+            signature[a + 1] = target < 0 ? -1 : classOf[target];
+          }
+          final String key = Arrays.toString(signature);
+          Integer newClass = signature2class.get(key);
+          if (newClass == null) {
+            newClass = signature2class.size();
+            signature2class.put(key, newClass);
+          }
+          newClassOf[s] = newClass;
+        }
+        classOf = newClassOf;
+        if (signature2class.size() == classes) break;
+        classes = signature2class.size();
+      }
+      final int[] minNext = new int[classes * alphabetSize];
+      final boolean[] minAccepting = new boolean[classes];
+      for (int s = 0; s < n; s++) {
+        minAccepting[classOf[s]] = accepting[s];
+        for (int a = 0; a < alphabetSize; a++) {
+          final int target = next[s * alphabetSize + a];
+          minNext[classOf[s] * alphabetSize + a] =
+            target < 0 ? -1 : classOf[target];
+        }
+      }
+      return new Dfa(symbolOf, alphabetSize, minNext, minAccepting);
+    }
+  }
+
+  private Part1(final boolean recursive, final ForkJoinPool pool)
   {
     log = new Log();
     id2rule = new HashMap<Integer, Rule>();
+    this.recursive = recursive;
+    this.pool = pool;
   }
 
   private void printGrammar()
@@ -287,19 +559,102 @@ public class Part1
     parseGrammar(values);
   }
 
-  private void parseMessages(final BufferedReader reader) throws IOException
+  private boolean accept(final String message)
   {
-    String line;
-    int sum = 0;
-    final Rule startRule = id2rule.get(0);
-    while ((line = reader.readLine()) != null) {
-      final TreeSet<Integer> result = startRule.accept(line, 0);
-      log.log(line + " -> " +
-              (result.size() > 0 ? result.last() : "-1") +
-              "(" + line.length() + ")");
-      if (result.contains(line.length())) sum++;
+    if (dfa != null) return dfa.accept(message);
+    final TreeSet<Integer> result = id2rule.get(0).accept(message, 0);
+    log.log(message + " -> " +
+            (result.size() > 0 ? result.last() : "-1") +
+            "(" + message.length() + ")");
+    return result.contains(message.length());
+  }
+
+  /**
+   * Counts the lines of a reader that satisfy a predicate.  Lines are
+   * collected into batches of BATCH_LINES, and each batch is counted
+   * on the pool while the next one is read, splitting it recursively
+   * down to CHUNK_LINES lines.  Once more than twice as many batches
+   * as the pool has threads are in flight, reading waits for the
+   * oldest one.
+   */
+  private static class BatchCounter
+  {
+    private static final int BATCH_LINES = 1 << 14;
+    private static final int CHUNK_LINES = 1 << 10;
+
+    private final ForkJoinPool pool;
+    private final Predicate<String> predicate;
+
+    private BatchCounter(final ForkJoinPool pool,
+                         final Predicate<String> predicate)
+    {
+      this.pool = pool;
+      this.predicate = predicate;
     }
-    System.out.println(sum);
+
+    private class CountTask extends RecursiveTask<Integer>
+    {
+      private static final long serialVersionUID = 1L;
+
+      private final String[] lines;
+      private final int from;
+      private final int to;
+
+      private CountTask(final String[] lines, final int from, final int to)
+      {
+        this.lines = lines;
+        this.from = from;
+        this.to = to;
+      }
+
+      @Override
+      protected Integer compute()
+      {
+        if (to - from <= CHUNK_LINES) {
+          int sum = 0;
+          for (int i = from; i < to; i++) {
+            if (predicate.test(lines[i])) sum++;
+          }
+          return sum;
+        }
+        final int mid = (from + to) >>> 1;
+        final CountTask left = new CountTask(lines, from, mid);
+        left.fork();
+        final int sum = new CountTask(lines, mid, to).compute();
+        return sum + left.join();
+      }
+    }
+
+    private long count(final BufferedReader reader) throws IOException
+    {
+      long sum = 0;
+      final ArrayDeque<ForkJoinTask<Integer>> pending =
+        new ArrayDeque<ForkJoinTask<Integer>>();
+      final int maxPending = 2 * pool.getParallelism();
+      String[] batch = new String[BATCH_LINES];
+      int size = 0;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        batch[size++] = line;
+        if (size < BATCH_LINES) continue;
+        pending.add(pool.submit(new CountTask(batch, 0, size)));
+        if (pending.size() > maxPending) sum += pending.poll().join();
+        batch = new String[BATCH_LINES];
+        size = 0;
+      }
+      if (size > 0) pending.add(pool.submit(new CountTask(batch, 0, size)));
+      while (!pending.isEmpty()) sum += pending.poll().join();
+      return sum;
+    }
+  }
+
+  /**
+   * Neither the grammar nor the DFA is modified after construction,
+   * such that the messages can be matched concurrently.
+   */
+  private void parseMessages(final BufferedReader reader) throws IOException
+  {
+    System.out.println(new BatchCounter(pool, this::accept).count(reader));
   }
 
   private void run(final String filePath) throws IOException
@@ -307,11 +662,32 @@ public class Part1
     final var reader = new BufferedReader(new FileReader(filePath));
     loadGrammar(reader);
     // printGrammar();
+    if (!recursive) {
+      dfa = new DfaCompiler().compile(id2rule.get(0));
+      if (dfa == null) {
+        System.err.println("grammar not compilable, " +
+                           "falling back to recursive matching");
+      } else {
+        log.log("dfa with " + dfa.size() + " states");
+      }
+    }
     parseMessages(reader);
   }
 
   public static void main(final String argv[]) throws IOException
   {
-    new Part1().run("data.txt");
+    boolean recursive = false;
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+    for (int i = 0; i < argv.length; i++) {
+      if (argv[i].equals("--recursive")) {
+        recursive = true;
+      } else if (argv[i].equals("--threads") && (i + 1 < argv.length)) {
+        pool = new ForkJoinPool(Integer.parseInt(argv[++i]));
+      } else {
+        throw new IllegalArgumentException("usage: Part1 [--recursive] " +
+                                           "[--threads N]");
+      }
+    }
+    new Part1(recursive, pool).run("data.txt");
   }
 }
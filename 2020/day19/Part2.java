@@ -1,40 +1,110 @@
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
 
 public class Part2
 {
   private static final boolean DEBUG = false;
+
   private final Log log;
   private final HashMap<Integer, Rule> id2rule;
+  private final Matcher matcher;
+  private final ForkJoinPool pool;
+  private final ThreadLocal<Memo> memos;
+  private EarleyParser earleyParser;
+
+  private enum Matcher {
+    RECURSIVE, EARLEY
+  }
 
+  /**
+   * Indentation is kept per thread, such that messages can be matched
+   * concurrently.
+   */
   private static class Log
   {
     static final String indentPattern = ".+*";
-    int indent;
-    String indentStr = "";
+    private final ThreadLocal<String> indentStr =
+      ThreadLocal.withInitial(() -> "");
 
     public void indent()
     {
-      indent++;
-      indentStr = indentStr +
-        indentPattern.charAt(indent % indentPattern.length()) + " ";
+      if (!DEBUG) return;
+      final String str = indentStr.get();
+      final int indent = (str.length() / 2 + 1) % indentPattern.length();
+      indentStr.set(str + indentPattern.charAt(indent) + " ");
     }
 
     public void unindent()
     {
-      if (indent == 0)
+      if (!DEBUG) return;
+      final String str = indentStr.get();
+      if (str.isEmpty())
         throw new RuntimeException("nothing left for unindent");
-      indent--;
-      indentStr = indentStr.substring(0, indentStr.length() - 2);
+      indentStr.set(str.substring(0, str.length() - 2));
     }
 
     public void log(String message)
     {
-      if (DEBUG) System.out.println(indentStr + message);
+      if (DEBUG) System.out.println(indentStr.get() + message);
+    }
+  }
+
+  /**
+   * Set of end positions per rule and start position, for a single
+   * message.  Each (rule, start position) pair is derived at most
+   * once per message, no matter how often the looping rules refer
+   * back to it.  Entries are shared and must not be modified.
+   *
+   * A memo is scratch space of a single thread and reused for all of
+   * its messages: Rather than clearing the table, each message gets a
+   * new generation, and entries of older generations count as unset.
+   */
+  private static class Memo
+  {
+    private static final BitSet IN_PROGRESS = new BitSet();
+
+    private final int rules;
+    private BitSet[][] ends;
+    private int[][] generations;
+    private int generation;
+
+    private Memo(final int rules)
+    {
+      this.rules = rules;
+      ends = new BitSet[rules][0];
+      generations = new int[rules][0];
+    }
+
+    private void reset(final int length)
+    {
+      if ((length + 1 > ends[0].length) || (generation == Integer.MAX_VALUE)) {
+        final int capacity = Math.max(length + 1, 2 * ends[0].length);
+        ends = new BitSet[rules][capacity];
+        generations = new int[rules][capacity];
+        generation = 0;
+      }
+      generation++;
+    }
+
+    private BitSet get(final int rule, final int pos)
+    {
+      return generations[rule][pos] == generation ? ends[rule][pos] : null;
+    }
+
+    private void put(final int rule, final int pos, final BitSet positions)
+    {
+      ends[rule][pos] = positions;
+      generations[rule][pos] = generation;
     }
   }
 
@@ -62,45 +132,39 @@ public class Part2
     public void resolve(final HashMap<Integer, Rule> id2rule)
     {
       for (final Integer ruleRef : ruleRefs) {
-        rules.add(id2rule.get(ruleRef));
-      }
-    }
-
-    private TreeSet<Integer> accept(final String input, final int startPos,
-                                    final int ruleIndex)
-    {
-      log.indent();
-      log.log("expansion[" + ruleIndex + "] " + " accepts " +
-              input + "@" + startPos + "?");
-      final TreeSet<Integer> result = new TreeSet<Integer>();
-      if (ruleIndex < rules.size()) {
-        final Rule rule = rules.get(ruleIndex);
-        final TreeSet<Integer> possiblePositions = rule.accept(input, startPos);
-        for (final Integer pos : possiblePositions) {
-          result.addAll(accept(input, pos, ruleIndex + 1));
+        final Rule rule = id2rule.get(ruleRef);
+        if (rule == null) {
+          throw new RuntimeException("reference to undefined rule " + ruleRef);
         }
-      } else {
-        result.add(startPos);
+        rules.add(rule);
       }
-      log.log("result=" +
-              result.stream().
-              map(Object::toString).
-              collect(java.util.stream.Collectors.joining(",")) +
-              "(" + result.size() + ")");
-      log.unindent();
-      return result;
     }
 
-    public TreeSet<Integer> accept(final String input, final int startPos)
+    /**
+     * Feeds the set of positions reached so far through the rules of
+     * this expansion, one rule after the other.
+     */
+    public BitSet accept(final String input, final int startPos,
+                         final Memo memo)
     {
       log.indent();
       log.log("expansion " + this + " accepts " +
               input + "@" + startPos + "?");
-      final TreeSet<Integer> result = accept(input, startPos, 0);
-      log.log((result.size() > 0 ? "yes" : "no") +
-              ": maxpos=" + (result.size() > 0 ? result.last() : -1));
+      BitSet positions = new BitSet();
+      positions.set(startPos);
+      for (final Rule rule : rules) {
+        final BitSet nextPositions = new BitSet();
+        for (int pos = positions.nextSetBit(0); pos >= 0;
+             pos = positions.nextSetBit(pos + 1)) {
+          nextPositions.or(rule.accept(input, pos, memo));
+        }
+        positions = nextPositions;
+        if (positions.isEmpty()) break;
+      }
+      log.log((positions.isEmpty() ? "no" : "yes") +
+              ": maxpos=" + (positions.length() - 1));
       log.unindent();
-      return result;
+      return positions;
     }
 
     public String toString()
@@ -118,6 +182,7 @@ public class Part2
   {
     protected final Log log;
     protected final int id;
+    protected int index;
 
     private Rule() {
       throw new UnsupportedOperationException("unsupported constructor");
@@ -134,7 +199,24 @@ public class Part2
     /**
      * @return Updated parse positions for any possible derivation.
      */
-    abstract TreeSet<Integer> accept(String input, int startPos);
+    abstract BitSet derive(String input, int startPos, Memo memo);
+
+    /**
+     * Memoized variant of derive().
+     */
+    public final BitSet accept(final String input, final int startPos,
+                               final Memo memo)
+    {
+      final BitSet known = memo.get(index, startPos);
+      if (known == Memo.IN_PROGRESS) {
+        throw new RuntimeException("left recursion in rule " + id);
+      }
+      if (known != null) return known;
+      memo.put(index, startPos, Memo.IN_PROGRESS);
+      final BitSet result = derive(input, startPos, memo);
+      memo.put(index, startPos, result);
+      return result;
+    }
 
     public static Rule parseRule(final Log log, final String unparsed)
     {
@@ -167,15 +249,14 @@ public class Part2
       }
     }
 
-    public TreeSet<Integer> accept(final String input, final int startPos)
+    public BitSet derive(final String input, final int startPos,
+                         final Memo memo)
     {
       log.indent();
       log.log("rule " + this);
-      final TreeSet<Integer> result = new TreeSet<Integer>();
+      final BitSet result = new BitSet();
       for (final Expansion expansion : expansions) {
-        final TreeSet<Integer> possiblePositions =
-          expansion.accept(input, startPos);
-        result.addAll(possiblePositions);
+        result.or(expansion.accept(input, startPos, memo));
       }
       log.unindent();
       return result;
@@ -236,12 +317,13 @@ public class Part2
       // nothing to resolve for terminals
     }
 
-    public TreeSet<Integer> accept(final String input, final int startPos)
+    public BitSet derive(final String input, final int startPos,
+                         final Memo memo)
     {
-      final TreeSet<Integer> result = new TreeSet<Integer>();
+      final BitSet result = new BitSet();
       if (startPos < input.length() &&
           (input.charAt(startPos) == terminal)) {
-        result.add(startPos + 1);
+        result.set(startPos + 1);
       }
       return result;
     }
@@ -252,10 +334,194 @@ public class Part2
     }
   }
 
-  private Part2()
+  /**
+   * Set of Earley items with insertion order, such that items added
+   * while iterating are visited as well.  Items are never negative,
+   * such that -1 marks empty slots of the hash table.
+   */
+  private static class ItemSet
+  {
+    private static final long EMPTY = -1;
+
+    private long[] items;
+    private long[] table;
+    private int size;
+
+    private ItemSet()
+    {
+      items = new long[16];
+      table = new long[32];
+      Arrays.fill(table, EMPTY);
+    }
+
+    private void clear()
+    {
+      if (size == 0) return;
+      Arrays.fill(table, EMPTY);
+      size = 0;
+    }
+
+    private static int slot(final long item, final int mask)
+    {
+      final long hash = item * 0x9e3779b97f4a7c15L;
+      return (int)(hash >>> 32) & mask;
+    }
+
+    private void add(final long item)
+    {
+      int mask = table.length - 1;
+      int i = slot(item, mask);
+      while (table[i] != EMPTY) {
+        if (table[i] == item) return;
+        i = (i + 1) & mask;
+      }
+      if (size == items.length) items = Arrays.copyOf(items, 2 * size);
+      items[size++] = item;
+      if (2 * size > table.length) {
+        table = new long[2 * table.length];
+        Arrays.fill(table, EMPTY);
+        mask = table.length - 1;
+        for (int j = 0; j < size; j++) {
+          int k = slot(items[j], mask);
+          while (table[k] != EMPTY) k = (k + 1) & mask;
+          table[k] = items[j];
+        }
+      } else {
+        table[i] = item;
+      }
+    }
+  }
+
+  /**
+   * Earley parser over an integer coded copy of the grammar.  Unlike
+   * the recursive matcher, it does not depend on the shape of the
+   * rules: Any recursion, including left recursion, and any ambiguity
+   * is handled, with the number of items per position bounded by the
+   * grammar size times the message length, such that worst case
+   * runtime is cubic in the message length.  Since every expansion
+   * consumes at least one character, there are no nullable rules to
+   * take care of.
+   */
+  private static class EarleyParser
+  {
+    /**
+     * The expansions of all rules are stored one after another in a
+     * flat array of rule indices, each terminated by -1.  A dotted
+     * expansion is then just an index into this array, pointing at the
+     * symbol right after the dot, or at the terminating -1 if the
+     * expansion is complete.  An item is a dotted expansion together
+     * with the position where its derivation started, packed into a
+     * single long.
+     */
+    private final int[] symbols;
+    private final int[] lhs;
+    private final int[][] expansionStarts;
+    private final char[] terminals;
+    private final int startRule;
+
+    /**
+     * Item sets per position, as scratch space of each thread.
+     */
+    private final ThreadLocal<ArrayList<ItemSet>> threadSets;
+
+    private EarleyParser(final HashMap<Integer, Rule> id2rule,
+                         final Rule startRule)
+    {
+      final int ruleCount = id2rule.size();
+      terminals = new char[ruleCount];
+      expansionStarts = new int[ruleCount][];
+      final ArrayList<Integer> flat = new ArrayList<Integer>();
+      final ArrayList<Integer> flatLhs = new ArrayList<Integer>();
+      for (final Rule rule : id2rule.values()) {
+        if (rule instanceof TerminalRule) {
+          terminals[rule.index] = ((TerminalRule)rule).terminal;
+          expansionStarts[rule.index] = new int[0];
+          continue;
+        }
+        final ArrayList<Expansion> expansions =
+          ((ExpansionRule)rule).expansions;
+        expansionStarts[rule.index] = new int[expansions.size()];
+        for (int i = 0; i < expansions.size(); i++) {
+          expansionStarts[rule.index][i] = flat.size();
+          for (final Rule symbol : expansions.get(i).rules) {
+            flat.add(symbol.index);
+            flatLhs.add(rule.index);
+          }
+          flat.add(-1);
+          flatLhs.add(rule.index);
+        }
+      }
+      symbols = flat.stream().mapToInt(Integer::intValue).toArray();
+      lhs = flatLhs.stream().mapToInt(Integer::intValue).toArray();
+      this.startRule = startRule.index;
+      threadSets = ThreadLocal.withInitial(() -> new ArrayList<ItemSet>());
+    }
+
+    private static long item(final int dotted, final int origin)
+    {
+      return ((long)dotted << 32) | origin;
+    }
+
+    private boolean accept(final String input)
+    {
+      final int n = input.length();
+      if (terminals[startRule] != 0) {
+        return (n == 1) && (input.charAt(0) == terminals[startRule]);
+      }
+      final ArrayList<ItemSet> sets = threadSets.get();
+      while (sets.size() <= n) sets.add(new ItemSet());
+      for (int i = 0; i <= n; i++) sets.get(i).clear();
+      for (final int start : expansionStarts[startRule]) {
+        sets.get(0).add(item(start, 0));
+      }
+      for (int i = 0; i <= n; i++) {
+        final ItemSet set = sets.get(i);
+        for (int k = 0; k < set.size; k++) {
+          final long item = set.items[k];
+          final int dotted = (int)(item >>> 32);
+          final int symbol = symbols[dotted];
+          if (symbol < 0) {
+            // complete: advance all items waiting for this rule
+            final int rule = lhs[dotted];
+            final ItemSet originSet = sets.get((int)item);
+            for (int m = 0; m < originSet.size; m++) {
+              final long waiting = originSet.items[m];
+              if (symbols[(int)(waiting >>> 32)] == rule) {
+                set.add(waiting + (1L << 32));
+              }
+            }
+          } else if (terminals[symbol] != 0) {
+            // scan
+            if ((i < n) && (input.charAt(i) == terminals[symbol])) {
+              sets.get(i + 1).add(item + (1L << 32));
+            }
+          } else {
+            // predict
+            for (final int start : expansionStarts[symbol]) {
+              set.add(item(start, i));
+            }
+          }
+        }
+      }
+      final ItemSet last = sets.get(n);
+      for (int k = 0; k < last.size; k++) {
+        final long item = last.items[k];
+        final int dotted = (int)(item >>> 32);
+        if ((symbols[dotted] < 0) && (lhs[dotted] == startRule) &&
+            ((int)item == 0))
+          return true;
+      }
+      return false;
+    }
+  }
+
+  private Part2(final Matcher matcher, final ForkJoinPool pool)
   {
     log = new Log();
     id2rule = new HashMap<Integer, Rule>();
+    this.matcher = matcher;
+    this.pool = pool;
+    memos = ThreadLocal.withInitial(() -> new Memo(id2rule.size()));
   }
 
   private void printGrammar()
@@ -271,7 +537,9 @@ public class Part2
       final Rule rule = Rule.parseRule(log, unparsedRule);
       id2rule.put(rule.id, rule);
     }
+    int index = 0;
     for (final Rule rule : id2rule.values()) {
+      rule.index = index++;
       rule.resolve(id2rule);
     }
   }
@@ -284,48 +552,207 @@ public class Part2
       if (line.isEmpty()) break;
       values.add(line);
     }
+    modifiyRulesForPart2(values);
     parseGrammar(values);
   }
 
+  private boolean acceptRecursive(final String message)
+  {
+    final Memo memo = memos.get();
+    memo.reset(message.length());
+    final BitSet result = id2rule.get(0).accept(message, 0, memo);
+    log.log(message + " -> " + (result.length() - 1) +
+            "(" + message.length() + ")");
+    return result.get(message.length());
+  }
+
+  private boolean accept(final Matcher matcher, final String message)
+  {
+    switch (matcher) {
+    case RECURSIVE:
+      return acceptRecursive(message);
+    case EARLEY:
+      return earleyParser.accept(message);
+    default:
+      throw new RuntimeException("unexpected case fall-through");
+    }
+  }
+
+  /**
+   * Tests message lines in parallel and returns how many pass.  While
+   * the reader moves on, full batches are handed to the pool, where
+   * each is halved until the pieces are small enough to be tested
+   * sequentially.  Joining the oldest batch as soon as too many are
+   * queued keeps the reader from running ahead of the matchers.
+   */
+  private static class BatchCounter
+  {
+    private static final int BATCH_LINES = 1 << 14;
+    private static final int CHUNK_LINES = 1 << 10;
+
+    private final ForkJoinPool pool;
+    private final Predicate<String> predicate;
+
+    private BatchCounter(final ForkJoinPool pool,
+                         final Predicate<String> predicate)
+    {
+      this.pool = pool;
+      this.predicate = predicate;
+    }
+
+    private class CountTask extends RecursiveTask<Integer>
+    {
+      private static final long serialVersionUID = 1L;
+
+      private final String[] lines;
+      private final int from;
+      private final int to;
+
+      private CountTask(final String[] lines, final int from, final int to)
+      {
+        this.lines = lines;
+        this.from = from;
+        this.to = to;
+      }
+
+      @Override
+      protected Integer compute()
+      {
+        if (to - from <= CHUNK_LINES) {
+          int sum = 0;
+          for (int i = from; i < to; i++) {
+            if (predicate.test(lines[i])) sum++;
+          }
+          return sum;
+        }
+        final int mid = (from + to) >>> 1;
+        final CountTask left = new CountTask(lines, from, mid);
+        left.fork();
+        final int sum = new CountTask(lines, mid, to).compute();
+        return sum + left.join();
+      }
+    }
+
+    private long count(final BufferedReader reader) throws IOException
+    {
+      long sum = 0;
+      final ArrayDeque<ForkJoinTask<Integer>> pending =
+        new ArrayDeque<ForkJoinTask<Integer>>();
+      final int maxPending = 2 * pool.getParallelism();
+      String[] batch = new String[BATCH_LINES];
+      int size = 0;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        batch[size++] = line;
+        if (size < BATCH_LINES) continue;
+        pending.add(pool.submit(new CountTask(batch, 0, size)));
+        if (pending.size() > maxPending) sum += pending.poll().join();
+        batch = new String[BATCH_LINES];
+        size = 0;
+      }
+      if (size > 0) pending.add(pool.submit(new CountTask(batch, 0, size)));
+      while (!pending.isEmpty()) sum += pending.poll().join();
+      return sum;
+    }
+  }
+
+  /**
+   * The rules are rewritten before the grammar is parsed, and memo
+   * tables and Earley item sets are kept per thread, so that the
+   * chosen matcher can run on several messages at once.
+   */
   private void parseMessages(final BufferedReader reader) throws IOException
   {
+    final Predicate<String> accepted = message -> accept(matcher, message);
+    System.out.println(new BatchCounter(pool, accepted).count(reader));
+  }
+
+  /**
+   * Matches all messages with each matcher for the given number of
+   * rounds (after a quarter as many warm-up rounds), checking that
+   * both matchers agree.
+   */
+  private void benchmark(final BufferedReader reader, final int rounds)
+    throws IOException
+  {
+    final ArrayList<String> messages = new ArrayList<String>();
     String line;
-    int sum = 0;
-    final Rule startRule = id2rule.get(0);
     while ((line = reader.readLine()) != null) {
-      final TreeSet<Integer> result = startRule.accept(line, 0);
-      log.log(line + " -> " +
-              (result.size() > 0 ? result.last() : "-1") +
-              "(" + line.length() + ")");
-      if (result.contains(line.length())) sum++;
+      messages.add(line);
+    }
+    final Matcher[] matchers = Matcher.values();
+    final long[] nanos = new long[matchers.length];
+    final int warmUpRounds = rounds / 4;
+    for (int round = 0; round < warmUpRounds + rounds; round++) {
+      for (final String message : messages) {
+        boolean expected = false;
+        for (int i = 0; i < matchers.length; i++) {
+          final long start = System.nanoTime();
+          final boolean accepted = accept(matchers[i], message);
+          if (round >= warmUpRounds) nanos[i] += System.nanoTime() - start;
+          if (i == 0) {
+            expected = accepted;
+          } else if (accepted != expected) {
+            throw new RuntimeException("matchers disagree on " + message);
+          }
+        }
+      }
+    }
+    for (int i = 0; i < matchers.length; i++) {
+      System.out.printf("%-10s %10.3f ms/round%n",
+                        matchers[i].toString().toLowerCase() + ":",
+                        nanos[i] * 1e-6 / rounds);
     }
-    System.out.println(sum);
   }
 
-  private void modifiyRulesForPart2()
+  /**
+   * Replaces rules 8 and 11 before the grammar is parsed, such that
+   * the rules are not modified anymore once parsed.
+   */
+  private void modifiyRulesForPart2(final ArrayList<String> unparsedRules)
   {
-    final Expansion expansionForRule8 = new Expansion(log, "42 8");
-    expansionForRule8.resolve(id2rule);
-    final ExpansionRule rule8 = (ExpansionRule)id2rule.get(8);
-    rule8.expansions.add(expansionForRule8);
-
-    final Expansion expansionForRule11 = new Expansion(log, "42 11 31");
-    expansionForRule11.resolve(id2rule);
-    final ExpansionRule rule11 = (ExpansionRule)id2rule.get(11);
-    rule11.expansions.add(expansionForRule11);
+    for (int i = 0; i < unparsedRules.size(); i++) {
+      final String unparsedRule = unparsedRules.get(i);
+      if (unparsedRule.startsWith("8:")) {
+        unparsedRules.set(i, "8: 42 | 42 8");
+      } else if (unparsedRule.startsWith("11:")) {
+        unparsedRules.set(i, "11: 42 31 | 42 11 31");
+      }
+    }
   }
 
-  private void run(final String filePath) throws IOException
+  private void run(final String filePath, final int benchmarkRounds)
+    throws IOException
   {
     final var reader = new BufferedReader(new FileReader(filePath));
     loadGrammar(reader);
-    modifiyRulesForPart2();
     // printGrammar();
-    parseMessages(reader);
+    earleyParser = new EarleyParser(id2rule, id2rule.get(0));
+    if (benchmarkRounds > 0)
+      benchmark(reader, benchmarkRounds);
+    else
+      parseMessages(reader);
   }
 
   public static void main(final String argv[]) throws IOException
   {
-    new Part2().run("data.txt");
+    Matcher matcher = Matcher.RECURSIVE;
+    int benchmarkRounds = 0;
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+    for (int i = 0; i < argv.length; i++) {
+      if (argv[i].equals("--matcher") && (i + 1 < argv.length)) {
+        matcher = Matcher.valueOf(argv[++i].toUpperCase());
+      } else if (argv[i].equals("--benchmark") && (i + 1 < argv.length)) {
+        benchmarkRounds = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("--threads") && (i + 1 < argv.length)) {
+        pool = new ForkJoinPool(Integer.parseInt(argv[++i]));
+      } else {
+        throw new IllegalArgumentException("usage: Part2 " +
+                                           "[--matcher recursive|earley] " +
+                                           "[--benchmark ROUNDS] " +
+                                           "[--threads N]");
+      }
+    }
+    new Part2(matcher, pool).run("data.txt", benchmarkRounds);
   }
 }
@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Stack;
@@ -252,6 +254,14 @@ public class Part1
     TileType type;
     Transform onBoardWithTransform;
 
+    /**
+     * For each transform, the top border after applying the transform
+     * on this tile, as bit vector with bit x holding the pixel at
+     * (x, 0).  Under the 8 transforms, the top border runs through all
+     * 4 sides in both reading directions.
+     */
+    long[] borders;
+
     public Tile(int id, int size)
     {
       this.id = id;
@@ -298,27 +308,55 @@ public class Part1
       }
     }
 
-    void checkLineUpWith(Tile other, Direction d, Transform t)
+    void computeBorders()
     {
-      int ccwThis = Direction.NORTH.cwDiffTo(d);
-      int ccwOther = Direction.NORTH.cwDiffTo(d.turnOpposite());
-      Transform tThis = Transform.fromCCW(ccwThis);
-      Transform tOther = t.concat(Transform.fromCCW(ccwOther));
-      for (int x = 0; x < bits.length; x++) {
-        boolean bitThis = getBitAfterTransform(tThis, bits.length - 1 - x, 0);
-        boolean bitOther = other.getBitAfterTransform(tOther, x, 0);
-        if (bitThis != bitOther) return;
+      if (bits.length > 64) {
+        throw new RuntimeException("tile too large for border signatures: " +
+                                   id);
+      }
+      borders = new long[Transform.values().length];
+      for (Transform t : Transform.values()) {
+        long border = 0;
+        for (int x = 0; x < bits.length; x++) {
+          if (getBitAfterTransform(t, x, 0)) border |= 1L << x;
+        }
+        borders[t.ordinal()] = border;
       }
-      lineUps.add(new LineUpInfo(other, d, t));
     }
 
-    void checkLineUpWith(Tile other)
+    /**
+     * The other tile lines up in direction d with transform t, if its
+     * top border after transform t.concat(tOther) equals this tile's
+     * top border after transform tThis, read in reverse direction.
+     * Rather than comparing all pairs of tiles, look up the candidate
+     * tiles by border signature in the border index.
+     */
+    void determineLineUps(HashMap<Long, ArrayList<BorderEntry>> borderIndex)
     {
       for (Direction d : Direction.values()) {
-        for (Transform t : Transform.values()) {
-          checkLineUpWith(other, d, t);
+        int ccwThis = Direction.NORTH.cwDiffTo(d);
+        int ccwOther = Direction.NORTH.cwDiffTo(d.turnOpposite());
+        Transform tThis = Transform.fromCCW(ccwThis);
+        Transform tOtherRotation = Transform.fromCCW(ccwOther);
+        long border =
+          Long.reverse(borders[tThis.ordinal()]) >>> (64 - bits.length);
+        ArrayList<BorderEntry> entries = borderIndex.get(border);
+        if (entries == null) continue;
+        for (BorderEntry entry : entries) {
+          if (entry.tile == this) continue;
+          for (Transform t : Transform.values()) {
+            if (t.concat(tOtherRotation) == entry.transform) {
+              lineUps.add(new LineUpInfo(entry.tile, d, t));
+            }
+          }
         }
       }
+      // same order as if checking all tiles, directions and transforms
+      Collections.sort(lineUps,
+                       Comparator.comparingInt((LineUpInfo lineUp) ->
+                                               lineUp.other.id)
+                       .thenComparing(lineUp -> lineUp.direction)
+                       .thenComparing(lineUp -> lineUp.otherTransform));
     }
 
     void printLineUps()
@@ -356,6 +394,22 @@ public class Part1
     }
   }
 
+  /**
+   * A tile together with a transform, indexed by the tile's top border
+   * after applying the transform.
+   */
+  private class BorderEntry
+  {
+    Tile tile;
+    Transform transform;
+
+    public BorderEntry(Tile tile, Transform transform)
+    {
+      this.tile = tile;
+      this.transform = transform;
+    }
+  }
+
   private Part1()
   {
     id2tile = new TreeMap<Integer, Tile>();
@@ -398,13 +452,20 @@ public class Part1
 
   private void determineLineUps()
   {
-    for (Tile tile1 : id2tile.values()) {
-      for (Tile tile2 : id2tile.values()) {
-        if (tile1 != tile2) {
-          tile1.checkLineUpWith(tile2);
-        }
+    HashMap<Long, ArrayList<BorderEntry>> borderIndex =
+      new HashMap<Long, ArrayList<BorderEntry>>();
+    for (Tile tile : id2tile.values()) {
+      tile.computeBorders();
+      for (Transform t : Transform.values()) {
+        borderIndex
+          .computeIfAbsent(tile.borders[t.ordinal()],
+                           border -> new ArrayList<BorderEntry>())
+          .add(new BorderEntry(tile, t));
       }
     }
+    for (Tile tile : id2tile.values()) {
+      tile.determineLineUps(borderIndex);
+    }
   }
 
   private void sortLineUps()
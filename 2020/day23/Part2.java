@@ -1,12 +1,26 @@
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.HashMap;
 
 public class Part2
 {
-  private static final int SIZE = 1000000;
-  private static final int ROUNDS = 10000000;
+  private static final int DEFAULT_SIZE = 1000000;
+  private static final int DEFAULT_ROUNDS = 10000000;
+
+  /**
+   * Maximum number of labels that we allocate on the heap; larger
+   * successor tables go off-heap.
+   */
+  private static final long MAX_HEAP_ENTRIES =
+    Math.min(Integer.MAX_VALUE - 8, Runtime.getRuntime().maxMemory() / 8);
+
+  private final int size;
+  private final int rounds;
+  private final boolean useLinkedCups;
   private final HashMap<Integer, Cup> id2cup;
   private Cup cupWithLabel1;
 
@@ -86,11 +100,95 @@ public class Part2
     public String toString() { return Integer.toString(label); }
   }
 
-  private Part2()
+  /**
+   * Alternative representation of the circle of cups: Since labels
+   * are exactly the numbers 1..size, the circle is fully described by
+   * a table that maps each label to the label of its clockwise
+   * successor.  Removing and inserting the three picked up cups then
+   * boils down to a few table updates, and the destination cup is
+   * found by plain label arithmetic, without any cup objects at all.
+   */
+  private interface Successors
+  {
+    int get(final int label);
+    void set(final int label, final int next);
+  }
+
+  private static class HeapSuccessors implements Successors
+  {
+    private final int[] next;
+
+    private HeapSuccessors(final int size)
+    {
+      next = new int[size];
+    }
+
+    public int get(final int label) { return next[label]; }
+
+    public void set(final int label, final int next)
+    {
+      this.next[label] = next;
+    }
+  }
+
+  /**
+   * For a circle of more cups than fit into an int array, the label
+   * of each cup's clockwise neighbour is kept in direct memory,
+   * spread over several int buffers of 2^28 entries each, since a
+   * single buffer cannot exceed 2 GiB.  A label is split into the
+   * index of its buffer and its position within that buffer.  The
+   * direct memory available is capped by -XX:MaxDirectMemorySize.
+   */
+  private static class OffHeapSuccessors implements Successors
+  {
+    private static final int CHUNK_BITS = 28;
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+    private final IntBuffer[] chunks;
+
+    private OffHeapSuccessors(final long size)
+    {
+      chunks = new IntBuffer[(int)((size + CHUNK_MASK) >>> CHUNK_BITS)];
+      for (int i = 0; i < chunks.length; i++) {
+        final long chunkSize = Math.min(size - ((long)i << CHUNK_BITS),
+                                        1L << CHUNK_BITS);
+        chunks[i] = ByteBuffer.allocateDirect((int)chunkSize * 4)
+          .order(ByteOrder.nativeOrder()).asIntBuffer();
+      }
+    }
+
+    public int get(final int label)
+    {
+      return chunks[label >>> CHUNK_BITS].get(label & CHUNK_MASK);
+    }
+
+    public void set(final int label, final int next)
+    {
+      chunks[label >>> CHUNK_BITS].put(label & CHUNK_MASK, next);
+    }
+  }
+
+  private Part2(final int size, final int rounds,
+                final boolean useLinkedCups)
   {
+    if (size < 1)
+      throw new IllegalArgumentException("size must be positive: " + size);
+    if (rounds < 0)
+      throw new IllegalArgumentException("rounds must not be negative: " +
+                                         rounds);
+    this.size = size;
+    this.rounds = rounds;
+    this.useLinkedCups = useLinkedCups;
     id2cup = new HashMap<Integer, Cup>();
   }
 
+  private static Successors createSuccessors(final long size)
+  {
+    return
+      (size <= MAX_HEAP_ENTRIES) ?
+      new HeapSuccessors((int)size) :
+      new OffHeapSuccessors(size);
+  }
+
   private static int min(final int a, final int b)
   {
     return a < b ? a : b;
@@ -111,10 +209,82 @@ public class Part2
     System.out.println(s);
   }
 
+  private void printCups(final Successors next, final int markLabel)
+  {
+    final StringBuffer s = new StringBuffer("cups:");
+    int label = 1;
+    for (int i = 0; i < min(size, 20); i++) {
+      s.append(" ");
+      if (label == markLabel) s.append("(");
+      s.append(label);
+      if (label == markLabel) s.append(")");
+      label = next.get(label);
+    }
+    if (size > 20) s.append(" ...");
+    System.out.println(s);
+  }
+
+  private void printProgress(final int move)
+  {
+    if ((move & 0xfffff) == 0)
+      System.out.printf("%d%%\r", ((long)move * 100 / rounds));
+  }
+
   private void run(final String filePath) throws IOException
   {
     final var reader = new BufferedReader(new FileReader(filePath));
     final String input = reader.readLine();
+    if (input.length() > size)
+      throw new RuntimeException("more input cups than total cups");
+    if (useLinkedCups)
+      runLinkedCups(input);
+    else
+      runIndexedCups(input);
+  }
+
+  private void runIndexedCups(final String input)
+  {
+    final Successors next = createSuccessors(size + 1L);
+    final int startLabel = input.charAt(0) - '0';
+    int maxLabel = 0;
+    int lastLabel = 0;
+    for (final char ch : input.toCharArray()) {
+      final int label = ch - '0';
+      if (lastLabel != 0) next.set(lastLabel, label);
+      lastLabel = label;
+      maxLabel = Math.max(maxLabel, label);
+    }
+    for (int label = maxLabel + 1; label <= size; label++) {
+      next.set(lastLabel, label);
+      lastLabel = label;
+    }
+    next.set(lastLabel, startLabel);
+    int currentLabel = startLabel;
+    int move = 0;
+    while (move++ < rounds) {
+      printProgress(move);
+      final int pickUp1 = next.get(currentLabel);
+      final int pickUp2 = next.get(pickUp1);
+      final int pickUp3 = next.get(pickUp2);
+      next.set(currentLabel, next.get(pickUp3));
+      int destinationLabel = currentLabel;
+      do {
+        destinationLabel = destinationLabel > 1 ? destinationLabel - 1 : size;
+      } while ((destinationLabel == pickUp1) ||
+               (destinationLabel == pickUp2) ||
+               (destinationLabel == pickUp3));
+      next.set(pickUp3, next.get(destinationLabel));
+      next.set(destinationLabel, pickUp1);
+      currentLabel = next.get(currentLabel);
+    }
+    System.out.println("-- final --");
+    printCups(next, currentLabel);
+    final int label1 = next.get(1);
+    System.out.println((long)label1 * next.get(label1));
+  }
+
+  private void runLinkedCups(final String input)
+  {
     Cup startCup = null;
     Cup parsedCup = null;
     for (final char ch : input.toCharArray()) {
@@ -127,26 +297,23 @@ public class Part2
     id2cup.values().stream().forEach(cup -> {
         final int lowerLabel =
           ((cup.label + id2cup.size() - 2) % id2cup.size()) + 1;
-        cup.lowerLabelCup =
-          id2cup.values().stream()
-          .filter(lowerCup -> lowerCup.label == lowerLabel).findAny().get();
+        cup.lowerLabelCup = id2cup.get(lowerLabel);
       });
     Cup cupWithMaxLabel = id2cup.values().stream()
       .max((cup1, cup2) -> Integer.compare(cup1.label, cup2.label)).get();
     Cup syntheticCup = null;
-    for (int label = cupWithMaxLabel.label + 1; label <= SIZE; label++) {
+    for (int label = cupWithMaxLabel.label + 1; label <= size; label++) {
       syntheticCup = parsedCup.createAndAppendCup(label);
       id2cup.put(label, syntheticCup);
       syntheticCup.lowerLabelCup = cupWithMaxLabel;
       cupWithMaxLabel = syntheticCup;
       parsedCup = syntheticCup;
     }
-    cupWithLabel1.lowerLabelCup = parsedCup;
+    cupWithLabel1.lowerLabelCup = cupWithMaxLabel;
     Cup currentCup = startCup;
     int move = 0;
-    while (move++ < ROUNDS) {
-      if ((move & 0xfffff) == 0)
-        System.out.printf("%d%%\r", (move * 100 / ROUNDS));
+    while (move++ < rounds) {
+      printProgress(move);
       final Cup pickUp1 = currentCup.next;
       pickUp1.remove();
       final Cup pickUp2 = currentCup.next;
@@ -169,6 +336,21 @@ public class Part2
 
   public static void main(final String argv[]) throws IOException
   {
-    new Part2().run("data.txt");
+    int size = DEFAULT_SIZE;
+    int rounds = DEFAULT_ROUNDS;
+    boolean useLinkedCups = false;
+    for (int i = 0; i < argv.length; i++) {
+      if (argv[i].equals("--cups") && (i + 1 < argv.length)) {
+        size = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("--moves") && (i + 1 < argv.length)) {
+        rounds = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("--linked")) {
+        useLinkedCups = true;
+      } else {
+        throw new IllegalArgumentException("usage: Part2 [--cups N] " +
+                                           "[--moves N] [--linked]");
+      }
+    }
+    new Part2(size, rounds, useLinkedCups).run("data.txt");
   }
 }